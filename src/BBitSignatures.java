@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+/**
+ * b-bit minwise hashing signatures.
+ * <p>
+ * Only the lowest b bits of every MinHash value are kept, packed into long
+ * words per document. Two signatures are compared by XOR-ing their words and
+ * counting the lanes that differ with a popcount. Since two random values
+ * agree on their lowest b bits by chance as well, the fraction of matching
+ * lanes overestimates the Jaccard similarity; this is corrected for as
+ * described by Li and König (2010), using the shingle set sizes of both
+ * documents.
+ */
+public class BBitSignatures {
+
+    int numHashes;
+    int bits;
+    int numValues;
+    int wordsPerDoc;
+    // doc-major packed signatures
+    long[] words;
+    // size of the shingle set of each document
+    int[] setSizes;
+    // lowest bit of every lane in a word
+    private long laneMask;
+
+    /**
+     * Construct an empty set of b-bit signatures.
+     *
+     * @param numDocs   number of documents
+     * @param numHashes number of hash values per signature
+     * @param bits      number of bits to keep per hash value: 1, 2, 4, 8 or 16
+     * @param numValues number of unique values that occur in the object set representations
+     */
+    public BBitSignatures(int numDocs, int numHashes, int bits, int numValues) {
+        if (bits <= 0 || bits > 16 || 64 % bits != 0) {
+            throw new IllegalArgumentException("The number of bits should be 1, 2, 4, 8 or 16, not " + bits);
+        }
+        this.numHashes = numHashes;
+        this.bits = bits;
+        this.numValues = numValues;
+        this.wordsPerDoc = (numHashes * bits + 63) / 64;
+        this.words = new long[numDocs * wordsPerDoc];
+        this.setSizes = new int[numDocs];
+
+        long lane = 1;
+        for (int i = 0; i < 64; i += bits) laneMask |= lane << i;
+    }
+
+    /**
+     * Store the lowest bits of a document's signature.
+     *
+     * @param doc       the document
+     * @param signature the full MinHash signature of the document
+     * @param setSize   size of the shingle set of the document
+     */
+    public void set(int doc, short[] signature, int setSize) {
+        int lanesPerWord = 64 / bits;
+        long mask = (1L << bits) - 1;
+        for (int h = 0; h < numHashes; h++) {
+            words[doc * wordsPerDoc + h / lanesPerWord] |= (signature[h] & mask) << (h % lanesPerWord * bits);
+        }
+        setSizes[doc] = setSize;
+    }
+
+    /**
+     * Returns the lowest bits of a document's hash value.
+     */
+    public int get(int h, int doc) {
+        int lanesPerWord = 64 / bits;
+        long word = words[doc * wordsPerDoc + h / lanesPerWord];
+        return (int) (word >>> (h % lanesPerWord * bits)) & ((1 << bits) - 1);
+    }
+
+    /**
+     * Count the hash values on which two documents agree.
+     */
+    public int countMatches(int d1, int d2) {
+        int mismatches = 0;
+        for (int w = 0; w < wordsPerDoc; w++) {
+            long x = words[d1 * wordsPerDoc + w] ^ words[d2 * wordsPerDoc + w];
+            // fold every lane onto its lowest bit
+            for (int shift = 1; shift < bits; shift <<= 1) x |= x >>> shift;
+            mismatches += Long.bitCount(x & laneMask);
+        }
+        return numHashes - mismatches;
+    }
+
+    /**
+     * Estimate the Jaccard similarity of two documents, corrected for the
+     * chance that their lowest bits agree while their hash values don't.
+     */
+    public double similarity(int d1, int d2) {
+        double matches = (double) countMatches(d1, d2) / numHashes;
+
+        double r1 = (double) setSizes[d1] / numValues;
+        double r2 = (double) setSizes[d2] / numValues;
+        if (r1 + r2 == 0) return 0;
+        double a1 = bitCollisionRate(r1);
+        double a2 = bitCollisionRate(r2);
+        double c1 = a1 * r2 / (r1 + r2) + a2 * r1 / (r1 + r2);
+        double c2 = a1 * r1 / (r1 + r2) + a2 * r2 / (r1 + r2);
+
+        double sim = (matches - c1) / (1 - c2);
+        return Math.max(0, Math.min(1, sim));
+    }
+
+    /**
+     * Probability that the lowest bits of two different minima agree, for a
+     * set that covers a fraction r of all values.
+     */
+    private double bitCollisionRate(double r) {
+        if (r >= 1) return 0;
+        if (r <= 0) return 1.0 / (1 << bits);
+        double values = 1 << bits;
+        return r * Math.pow(1 - r, values - 1) / (1 - Math.pow(1 - r, values));
+    }
+
+    /**
+     * Returns the number of bytes taken by the packed signatures.
+     */
+    public long getSizeInBytes() {
+        return (long) words.length * 8 + (long) setSizes.length * 4;
+    }
+}
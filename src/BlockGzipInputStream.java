@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a block gzip (BGZF) file in parallel. Such a file is a series
+ * of gzip members of at most 64KB, each of which stores its compressed size
+ * in the 'BC' subfield of its header. The blocks can thus be cut from the
+ * file without inflating them, and are inflated by a pool of threads while
+ * the stream hands the decompressed blocks on in their original order. A
+ * bounded number of blocks is inflated ahead of the consumer.
+ */
+public class BlockGzipInputStream extends InputStream {
+
+    // fixed part of a gzip header, followed by the length of the extra field
+    private static final int HEADER_SIZE = 12;
+    // CRC32 and size of the uncompressed data that end a member
+    private static final int TRAILER_SIZE = 8;
+    private static final int FEXTRA = 4;
+
+    private final DataInputStream in;
+    private final ExecutorService inflaters;
+    // blocks being inflated, in file order
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private final int readAhead;
+    private byte[] current = new byte[0];
+    private int position;
+    private boolean endOfInput;
+
+    /**
+     * Construct a stream that decompresses a block gzip stream.
+     * @param in the compressed stream
+     * @param numThreads number of threads inflating blocks
+     */
+    public BlockGzipInputStream(InputStream in, int numThreads) throws IOException {
+        this.in = new DataInputStream(in);
+        this.inflaters = Executors.newFixedThreadPool(Math.max(1, numThreads), runnable -> {
+            Thread thread = new Thread(runnable, "inflater");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.readAhead = 4 * Math.max(1, numThreads);
+        submitBlocks();
+    }
+
+    /**
+     * Check whether a file starts with a gzip header.
+     */
+    public static boolean isGzip(File file) throws IOException {
+        byte[] header = readHeader(file, 2);
+        return header.length == 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b;
+    }
+
+    /**
+     * Check whether a file starts with a block gzip header, i.e. a gzip
+     * header with a 'BC' subfield in its extra field.
+     */
+    public static boolean isBlockGzip(File file) throws IOException {
+        byte[] header = readHeader(file, HEADER_SIZE + 6);
+        return header.length == HEADER_SIZE + 6 && isGzip(file) && (header[3] & FEXTRA) != 0
+                && findBlockSize(header, HEADER_SIZE, getShort(header, HEADER_SIZE - 2)) >= 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == current.length) {
+            if (pending.isEmpty()) {
+                return -1;
+            }
+            try {
+                current = pending.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while inflating", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to inflate a block", e.getCause());
+            }
+            position = 0;
+            submitBlocks();
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflaters.shutdownNow();
+        in.close();
+    }
+
+    /**
+     * Cut blocks from the file and hand them to the inflaters, until
+     * readAhead blocks are pending.
+     */
+    private void submitBlocks() throws IOException {
+        while (!endOfInput && pending.size() < readAhead) {
+            byte[] block = readBlock();
+            if (block == null) {
+                endOfInput = true;
+            } else {
+                pending.add(inflaters.submit(() -> inflate(block)));
+            }
+        }
+    }
+
+    /**
+     * Read the next block, header and trailer included.
+     * @return the block, or null at the end of the file
+     */
+    private byte[] readBlock() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int read = in.readNBytes(header, 0, HEADER_SIZE);
+        if (read == 0) {
+            return null;
+        }
+        if (read < HEADER_SIZE || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || (header[3] & FEXTRA) == 0) {
+            throw new IOException("Not a block gzip member");
+        }
+        int extraLength = getShort(header, HEADER_SIZE - 2);
+        byte[] block = new byte[HEADER_SIZE + extraLength];
+        System.arraycopy(header, 0, block, 0, HEADER_SIZE);
+        in.readFully(block, HEADER_SIZE, extraLength);
+        int blockSize = findBlockSize(block, HEADER_SIZE, extraLength);
+        if (blockSize < block.length + TRAILER_SIZE) {
+            throw new IOException("Gzip member without a valid block size");
+        }
+
+        byte[] whole = new byte[blockSize];
+        System.arraycopy(block, 0, whole, 0, block.length);
+        try {
+            in.readFully(whole, block.length, blockSize - block.length);
+        } catch (EOFException e) {
+            throw new IOException("Truncated block gzip file", e);
+        }
+        return whole;
+    }
+
+    /**
+     * Inflate the compressed data of a block and check it against its trailer.
+     */
+    private static byte[] inflate(byte[] block) throws IOException {
+        int dataStart = HEADER_SIZE + getShort(block, HEADER_SIZE - 2);
+        int trailer = block.length - TRAILER_SIZE;
+        byte[] data = new byte[getInt(block, trailer + 4)];
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(block, dataStart, trailer - dataStart);
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, data.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += inflated;
+            }
+            if (n != data.length) {
+                throw new IOException("Block inflated to " + n + " instead of " + data.length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block", e);
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != getInt(block, trailer)) {
+            throw new IOException("CRC mismatch in block");
+        }
+        return data;
+    }
+
+    /**
+     * Find the 'BC' subfield in an extra field and return the size of the
+     * whole block it stores, or -1 if there is none.
+     */
+    private static int findBlockSize(byte[] header, int start, int extraLength) {
+        int i = start;
+        while (i + 4 <= start + extraLength && i + 4 <= header.length) {
+            int length = getShort(header, i + 2);
+            if (header[i] == 'B' && header[i + 1] == 'C' && length == 2 && i + 6 <= header.length) {
+                return getShort(header, i + 4) + 1;
+            }
+            i += 4 + length;
+        }
+        return -1;
+    }
+
+    private static byte[] readHeader(File file, int length) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.readNBytes(length);
+        }
+    }
+
+    private static int getShort(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return getShort(b, i) | getShort(b, i + 2) << 16;
+    }
+}
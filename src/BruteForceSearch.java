@@ -3,6 +3,8 @@
  * copy or distribute without permission. Written by Pieter Robberechts, 2023
  */
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
 
 /**
  * Brute force implementation of the similarity searcher. The Jaccard
@@ -36,11 +38,49 @@ public class BruteForceSearch extends SimilaritySearcher {
             for (int obj2 = 0; obj2 < obj1; obj2++){
                 double sim = jaccardSimilarity(docToShingle.get(obj1), docToShingle.get(obj2));
                 if (sim > threshold){
-                    cands.add(new SimilarPair(reader.getExternalId(obj2), reader.getExternalId(obj1), sim));
+                    addSimilarPair(cands, reader.getExternalId(obj2), reader.getExternalId(obj1), sim);
                 }
             }
         }
         return cands;
     }
 
+    /**
+     * Get the most similar pairs of objects with similarity above threshold.
+     * The objects are compared in parallel, every thread keeping its own top
+     * pairs, and pairs whose sizes differ too much to beat the least similar
+     * pair of a thread are skipped without computing their similarity.
+     * @param numPairs the maximal number of pairs
+     * @param threshold the similarity threshold
+     * @return the pairs, most similar first
+     */
+    @Override
+    public List<SimilarPair> getMostSimilarPairs(int numPairs, double threshold) {
+        System.out.println("Reading and shingling documents...");
+        List<Set<Integer>> docToShingle = reader.readAll();
+
+        System.out.println("Computing similarities...");
+        Queue<TopPairs> threadPairs = new ConcurrentLinkedQueue<TopPairs>();
+        ThreadLocal<TopPairs> localPairs = ThreadLocal.withInitial(() -> {
+            TopPairs pairs = new TopPairs(numPairs, threshold);
+            threadPairs.add(pairs);
+            return pairs;
+        });
+        IntStream.range(0, docToShingle.size()).parallel().forEach(obj1 -> {
+            TopPairs pairs = localPairs.get();
+            Set<Integer> set1 = docToShingle.get(obj1);
+            for (int obj2 = 0; obj2 < obj1; obj2++){
+                Set<Integer> set2 = docToShingle.get(obj2);
+                // the Jaccard similarity is at most the ratio of the smallest to the largest set
+                if (Math.min(set1.size(), set2.size()) <= pairs.getMinSimilarity() * Math.max(set1.size(), set2.size())) continue;
+                double sim = jaccardSimilarity(set1, set2);
+                pairs.offer(reader.getExternalId(obj2), reader.getExternalId(obj1), sim);
+            }
+        });
+
+        TopPairs topPairs = new TopPairs(numPairs, threshold);
+        for (TopPairs pairs : threadPairs) topPairs.addAll(pairs);
+        return topPairs.toList();
+    }
+
 }
@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Clusters of similar objects, being the connected components of the graph of
+ * similar pairs. Pairs are merged into a union-find over primitive arrays as
+ * soon as they are found, so a cluster of n objects takes O(n) memory and
+ * output instead of the O(n^2) of its pairs. For every cluster the minimum
+ * and average similarity of the pairs that were merged into it are kept.
+ * <p>
+ * Only objects that occur in a pair become a member. Not thread-safe.
+ */
+public class Clusters {
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    // external id, parent and cluster size of every member
+    long[] ids;
+    int[] parent;
+    int[] size;
+    // similarity statistics of the pairs in a cluster, only valid at its root
+    double[] minSim;
+    double[] sumSim;
+    long[] numPairs;
+    int numMembers;
+    int numClusters;
+    // open addressing table from external id to member, -1 for an empty slot
+    int[] slots;
+    int slotBits;
+
+    /**
+     * Construct an empty set of clusters.
+     */
+    public Clusters() {
+        ids = new long[INITIAL_CAPACITY];
+        parent = new int[INITIAL_CAPACITY];
+        size = new int[INITIAL_CAPACITY];
+        minSim = new double[INITIAL_CAPACITY];
+        sumSim = new double[INITIAL_CAPACITY];
+        numPairs = new long[INITIAL_CAPACITY];
+        slotBits = 11;
+        slots = new int[1 << slotBits];
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * Merge the clusters of two similar objects.
+     * @param id1 external id of object 1
+     * @param id2 external id of object 2
+     * @param sim their similarity
+     */
+    public void union(long id1, long id2, double sim) {
+        union(id1, id2, sim, 1);
+    }
+
+    /**
+     * Merge the clusters of two similar objects that stand for count pairs of
+     * the same similarity, e.g. the pairs among the duplicates of two objects.
+     * @param id1 external id of object 1
+     * @param id2 external id of object 2
+     * @param sim their similarity
+     * @param count number of pairs to credit to the similarity statistics
+     */
+    public void union(long id1, long id2, double sim, long count) {
+        int root1 = find(getMember(id1));
+        int root2 = find(getMember(id2));
+        if (root1 != root2) {
+            // attach the smaller cluster to the larger one
+            if (size[root1] < size[root2]) {
+                int tmp = root1;
+                root1 = root2;
+                root2 = tmp;
+            }
+            parent[root2] = root1;
+            size[root1] += size[root2];
+            minSim[root1] = Math.min(minSim[root1], minSim[root2]);
+            sumSim[root1] += sumSim[root2];
+            numPairs[root1] += numPairs[root2];
+            numClusters--;
+        }
+        minSim[root1] = Math.min(minSim[root1], sim);
+        sumSim[root1] += count * sim;
+        numPairs[root1] += count;
+    }
+
+    /**
+     * Returns the number of clusters.
+     */
+    public int getNumClusters() {
+        return numClusters;
+    }
+
+    /**
+     * Returns the number of objects in all clusters.
+     */
+    public int getNumMembers() {
+        return numMembers;
+    }
+
+    /**
+     * Write one line per cluster, largest clusters first: the comma separated
+     * external ids of its members, optionally followed by the minimum and
+     * average similarity of its pairs.
+     * @param bw the writer to write to
+     * @param withSimilarity whether to write the similarity statistics
+     */
+    public void write(BufferedWriter bw, boolean withSimilarity) throws IOException {
+        // order the members on their root with a counting sort
+        int[] roots = new int[numMembers];
+        int[] start = new int[numMembers + 1];
+        for (int m = 0; m < numMembers; m++) {
+            roots[m] = find(m);
+            start[roots[m] + 1]++;
+        }
+        for (int m = 0; m < numMembers; m++) start[m + 1] += start[m];
+        int[] members = new int[numMembers];
+        int[] next = Arrays.copyOf(start, numMembers);
+        for (int m = 0; m < numMembers; m++) members[next[roots[m]]++] = m;
+
+        // largest cluster first, packed as (inverted size, root) to sort primitives
+        long[] order = new long[numClusters];
+        int c = 0;
+        for (int m = 0; m < numMembers; m++) {
+            if (parent[m] == m) order[c++] = ((long) (Integer.MAX_VALUE - size[m]) << 32) | m;
+        }
+        Arrays.sort(order);
+
+        StringBuilder line = new StringBuilder();
+        for (long packed : order) {
+            int root = (int) packed;
+            line.setLength(0);
+            for (int i = start[root]; i < start[root + 1]; i++) {
+                if (i > start[root]) line.append(',');
+                line.append(ids[members[i]]);
+            }
+            if (withSimilarity) {
+                line.append('\t').append(minSim[root]).append('\t').append(sumSim[root] / numPairs[root]);
+            }
+            bw.write(line.toString());
+            bw.newLine();
+        }
+    }
+
+    /**
+     * Find the root of a member, halving the path on the way.
+     */
+    private int find(int m) {
+        while (parent[m] != m) {
+            parent[m] = parent[parent[m]];
+            m = parent[m];
+        }
+        return m;
+    }
+
+    /**
+     * Get the member of an external id, adding it as a singleton cluster if
+     * it isn't a member yet.
+     */
+    private int getMember(long id) {
+        int mask = slots.length - 1;
+        int slot = getSlot(id);
+        while (slots[slot] != -1) {
+            if (ids[slots[slot]] == id) return slots[slot];
+            slot = (slot + 1) & mask;
+        }
+
+        if (numMembers == ids.length) {
+            int capacity = 2 * ids.length;
+            ids = Arrays.copyOf(ids, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            size = Arrays.copyOf(size, capacity);
+            minSim = Arrays.copyOf(minSim, capacity);
+            sumSim = Arrays.copyOf(sumSim, capacity);
+            numPairs = Arrays.copyOf(numPairs, capacity);
+        }
+        int m = numMembers++;
+        ids[m] = id;
+        parent[m] = m;
+        size[m] = 1;
+        minSim[m] = Double.POSITIVE_INFINITY;
+        slots[slot] = m;
+        numClusters++;
+
+        // keep the table at most half full
+        if (2 * numMembers > slots.length) rehash();
+        return m;
+    }
+
+    /**
+     * Double the table from external id to member.
+     */
+    private void rehash() {
+        slotBits++;
+        slots = new int[1 << slotBits];
+        Arrays.fill(slots, -1);
+        int mask = slots.length - 1;
+        for (int m = 0; m < numMembers; m++) {
+            int slot = getSlot(ids[m]);
+            while (slots[slot] != -1) slot = (slot + 1) & mask;
+            slots[slot] = m;
+        }
+    }
+
+    /**
+     * Get the home slot of an external id with Fibonacci hashing.
+     */
+    private int getSlot(long id) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - slotBits));
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.Set;
+
+/**
+ * A document as read by a Reader: its internal id, its external id and its
+ * shingle representation. Documents carry everything needed to process them,
+ * so they can be handled in parallel without access to the reader.
+ */
+public class Document {
+	int index;
+	long externalId;
+	Set<Integer> shingles;
+
+	/**
+	 * Construct a Document object
+	 * @param index internal id of the document
+	 * @param externalId external id of the document
+	 * @param shingles shingle representation of the document
+	 */
+	public Document(int index, long externalId, Set<Integer> shingles) {
+		this.index = index;
+		this.externalId = externalId;
+		this.shingles = shingles;
+	}
+
+	/**
+	 * Returns the internal id of the document.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Returns the external id of the document.
+	 */
+	public long getExternalId() {
+		return externalId;
+	}
+
+	/**
+	 * Returns the shingle representation of the document.
+	 */
+	public Set<Integer> getShingles() {
+		return shingles;
+	}
+}
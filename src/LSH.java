@@ -24,8 +24,24 @@ public class LSH extends SimilaritySearcher
     int numBuckets;
     int numShingles;
     int numDocs;
+    int numProbes;
+    int numThreads;
     int seed;
-    short[][] signatureMatrix;
+    // signature of every document, stored contiguously per document
+    SignatureMatrix signatureMatrix;
+    // only the lowest bits of the signatures, replacing signatureMatrix when b-bit hashing is used
+    BBitSignatures bBitSignatures;
+    // second smallest hash value of every signature entry, only kept for multi-probing
+    SignatureMatrix runnerUpMatrix;
+    SignatureKernel kernel = SignatureKernel.create();
+    // number of candidate pairs verified during the last search
+    long numCandidates;
+    // checkpoints of the signatures and the completed bands, or null
+    LSHCheckpoint checkpoint;
+    // whether to resume the search from the checkpointed bands
+    boolean resume;
+    // initial capacity of the set of similar pairs that every search allocates
+    static final int RESULT_CAPACITY = 10000000;
 
     // List<Set<Integer>> documents;
 
@@ -39,6 +55,53 @@ public class LSH extends SimilaritySearcher
      * @param seed       should be used to generate any random numbers needed
      */
     public LSH(Reader reader, int numHashes, int numBands, int numBuckets, int seed) {
+        this(reader, numHashes, numBands, numBuckets, 0, 0, "table", 1, seed);
+    }
+
+    /**
+     * Construct a multi-probe LSH similarity searcher. Besides the bucket of
+     * its own band key, every document is also hashed to and compared against
+     * the buckets of up to numProbes neighbouring keys. A neighbouring key
+     * replaces one row of the band key by the runner-up of that row's
+     * minimum, starting with the rows where both are closest, since those are
+     * the rows most likely to differ in a similar document.
+     *
+     * @param reader     the document reader
+     * @param numHashes  number of hashes to use to construct the signature matrix
+     * @param numBands   number of bands to use during locality sensitive hashing
+     * @param numBuckets number of buckets to use during locality sensitive hashing
+     * @param numProbes  number of neighbouring buckets to probe per band
+     * @param bBits      number of lowest bits to keep per hash value, or 0 to keep the full signatures
+     * @param hashFamily family of the MinHash functions, "table" or "murmur"
+     * @param numThreads number of threads shingling and hashing the documents
+     * @param seed       should be used to generate any random numbers needed
+     */
+    public LSH(Reader reader, int numHashes, int numBands, int numBuckets, int numProbes, int bBits, String hashFamily, int numThreads, int seed) {
+        this(reader, numHashes, numBands, numBuckets, numProbes, bBits, hashFamily, numThreads, seed, null, false);
+    }
+
+    /**
+     * Construct an LSH similarity searcher that checkpoints its signatures,
+     * along with the position of the reader, and the pairs of every band it
+     * completes, so a run that is killed can be resumed. When resuming, the
+     * signatures are read from the checkpoint rather than constructed, and
+     * the search continues after the last completed band. b-bit signatures
+     * are constructed again, as only full signatures are checkpointed.
+     *
+     * @param reader        the document reader
+     * @param numHashes     number of hashes to use to construct the signature matrix
+     * @param numBands      number of bands to use during locality sensitive hashing
+     * @param numBuckets    number of buckets to use during locality sensitive hashing
+     * @param numProbes     number of neighbouring buckets to probe per band
+     * @param bBits         number of lowest bits to keep per hash value, or 0 to keep the full signatures
+     * @param hashFamily    family of the MinHash functions, "table" or "murmur"
+     * @param numThreads    number of threads shingling and hashing the documents
+     * @param seed          should be used to generate any random numbers needed
+     * @param checkpointDir directory to write the checkpoints to, or null to not checkpoint
+     * @param resume        whether to resume from the checkpoints in checkpointDir
+     */
+    public LSH(Reader reader, int numHashes, int numBands, int numBuckets, int numProbes, int bBits, String hashFamily, int numThreads, int seed,
+               File checkpointDir, boolean resume) {
         super(reader);
 
         this.numHashes = numHashes;
@@ -46,61 +109,272 @@ public class LSH extends SimilaritySearcher
         this.numBuckets = numBuckets;
         this.numShingles = reader.getNumShingles();
         this.numDocs = reader.getMaxDocs();
+        this.numProbes = numProbes;
         this.seed = seed;
-        this.signatureMatrix = Minhash.constructSignatureMatrixShort(reader, Minhash.constructHashTableShort(numHashes, numShingles, seed));
+        if (numProbes > 0) this.runnerUpMatrix = new SignatureMatrix(numDocs, numHashes);
+        this.numThreads = numThreads;
+        if (checkpointDir != null) {
+            String config = "numHashes=" + numHashes + " numBands=" + numBands + " numBuckets=" + numBuckets + " numProbes=" + numProbes
+                    + " bBits=" + bBits + " hashFamily=" + hashFamily + " seed=" + seed + " " + reader.getDescription();
+            this.checkpoint = new LSHCheckpoint(checkpointDir, config);
+            this.resume = resume;
+            if (!resume) checkpoint.clearProgress();
+        }
+        short[][] hashValues = Minhash.constructHashTableShort(hashFamily, numHashes, numShingles, seed);
+        if (bBits > 0) {
+            if (numProbes > 0) {
+                throw new Error("Multi-probing needs the full signatures and can't be combined with b-bit signatures");
+            }
+            this.bBitSignatures = constructBBitSignatures(hashValues, bBits);
+        } else if (resume && checkpoint != null && checkpoint.hasSignatures()) {
+            this.signatureMatrix = checkpoint.readSignatures(reader, runnerUpMatrix);
+        } else {
+            this.signatureMatrix = SignaturePipeline.constructSignatureMatrixShort(reader, hashValues, runnerUpMatrix, numThreads);
+            if (checkpoint != null) checkpoint.writeSignatures(reader, signatureMatrix, runnerUpMatrix);
+        }
+        // fewer documents than maxDocs may have been read, e.g. when duplicates were collapsed
+        this.numDocs = reader.getNumDocs();
+        if (signatureMatrix != null) System.out.println("Comparing signatures with the " + kernel.getName() + " kernel");
         //this.documents = reader.readAll();
     }
 
+    /**
+     * Construct an LSH similarity searcher that reuses the signatures of
+     * another one, with a different number of bands and rows. Only the first
+     * numBands * rows hash values of the signatures are used, so many
+     * configurations can be evaluated without reading the documents again.
+     * With b-bit signatures, similarities are still estimated from all hash
+     * values.
+     *
+     * @param base     the searcher whose signatures to use
+     * @param numBands number of bands to use during locality sensitive hashing
+     * @param rows     number of rows per band
+     */
+    public LSH(LSH base, int numBands, int rows) {
+        super(base.reader);
+
+        if (numBands * rows > base.numHashes) {
+            throw new IllegalArgumentException(numBands + " bands of " + rows + " rows need more than the " + base.numHashes + " hashes in the signatures");
+        }
+        this.numHashes = numBands * rows;
+        this.numBands = numBands;
+        this.numBuckets = base.numBuckets;
+        this.numShingles = base.numShingles;
+        this.numDocs = base.numDocs;
+        this.numProbes = base.numProbes;
+        this.numThreads = base.numThreads;
+        this.seed = base.seed;
+        this.signatureMatrix = base.signatureMatrix;
+        this.bBitSignatures = base.bBitSignatures;
+        this.runnerUpMatrix = base.runnerUpMatrix;
+        this.kernel = base.kernel;
+    }
+
 
     /**
      * Returns the pairs with similarity above threshold (approximate).
      */
     @Override
     public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
-        Set<SimilarPair> similarPairsAboveThreshold = new HashSet<SimilarPair>(10000000);
+        Set<SimilarPair> similarPairsAboveThreshold = new HashSet<SimilarPair>(RESULT_CAPACITY);
         //Set<SimilarPair> candidates = new HashSet<SimilarPair>(5000000);
         int rows = numHashes / numBands;
-        byte[] docKey;
+        byte[] docKey = new byte[rows];
+        boolean[] probed = new boolean[rows];
+        int[] docBuckets = new int[numProbes + 1];
+        int[] prevBuckets1 = new int[numProbes + 1];
+        int[] prevBuckets2 = new int[numProbes + 1];
+        // last doc each doc was compared to, so probes never verify a pair twice
+        int[] lastCompared = new int[numDocs];
+        int minMatches = SignatureKernel.getMinMatches(threshold, numHashes);
+        numCandidates = 0;
+
+        int firstBand = 0;
+        if (resume) {
+            firstBand = checkpoint.getCompletedBands(threshold);
+            for (int b = 0; b < firstBand; b++) {
+                checkpoint.readBand(b, (id1, id2, sim) -> addSimilarPair(similarPairsAboveThreshold, id1, id2, sim));
+            }
+            if (firstBand > 0) numCandidates = checkpoint.getCompletedCandidates();
+            System.out.println("Resuming the search from band " + firstBand);
+        }
 
-        for(int b = 0 ; b < numBands ; b++)
+        for(int b = firstBand ; b < numBands ; b++)
         {
+           if (checkpoint != null) checkpoint.startBand(b);
            List<List<Integer>> buckets = new ArrayList<>(numBuckets);
            for(int bucket = 0 ; bucket<numBuckets ; bucket++) buckets.add(new ArrayList<Integer>());
+           Arrays.fill(lastCompared, -1);
 
             for (int d = 0; d < numDocs; d++) 
             {
-                // Construct key of current doc in current band
-                docKey = new byte[rows];
-                for (int row = 0 ; row < rows ; row++) 
-                {
-                    docKey[row] = (byte) signatureMatrix[rows*b + row][d];
-                }
-                // Hash key using MurmurHash
-                int index = Math.abs(MurmurHash.hash32(docKey, rows, seed)) % numBuckets;
+                int numDocBuckets = getBuckets(b, d, rows, docKey, probed, docBuckets);
 
-                for(int document : buckets.get(index))
+                for (int k = 0 ; k < numDocBuckets ; k++)
                 {
-                    //double sim = jaccardSimilarity(documents.get(document),documents.get(d));
-                    
-                    double sim = 0;
-                    for(int h = 0 ; h<numHashes ; h++)
+                    for(int document : buckets.get(docBuckets[k]))
                     {
-                        if(signatureMatrix[h][document] == signatureMatrix[h][d]) sim++;
-                    }
-                    sim = sim/numHashes;
+                        //double sim = jaccardSimilarity(documents.get(document),documents.get(d));
+                        if (lastCompared[document] == d) continue;
+                        lastCompared[document] = d;
+                        countCandidate(document, d);
 
-                    SimilarPair similarPair = new SimilarPair(reader.getExternalId(document), reader.getExternalId(d), sim);
-                    if(sim > threshold)
-                    {
-                        similarPairsAboveThreshold.add(similarPair); 
-                    } //else candidates.add(similarPair);  
-                    
+                        double sim = getSimilarity(document, d, minMatches);
+
+                        if(sim > getMinSimilarity(threshold))
+                        {
+                            // pairs that share a bucket in an earlier band were added there
+                            if (sharesBucketBefore(b, document, d, rows, docKey, probed, prevBuckets1, prevBuckets2)) continue;
+                            addSimilarPair(similarPairsAboveThreshold, reader.getExternalId(document), reader.getExternalId(d), sim); 
+                            if (checkpoint != null) checkpoint.writePair(reader.getExternalId(document), reader.getExternalId(d), sim);
+                            // when keeping the most similar pairs, later candidates have to beat a higher similarity
+                            minMatches = SignatureKernel.getMinMatches(getMinSimilarity(threshold), numHashes);
+                        } //else candidates.add(similarPair);  
+                    }
                 }
-                buckets.get(index).add(d); 
+                for (int k = 0 ; k < numDocBuckets ; k++) buckets.get(docBuckets[k]).add(d);
             }
+            if (checkpoint != null) checkpoint.completeBand(b, threshold, numCandidates);
         }
         //System.out.println("False Positives: " + candidates.size());
         return similarPairsAboveThreshold;
     }
-}
 
+    /**
+     * Count a candidate pair that is about to be verified.
+     */
+    protected void countCandidate(int d1, int d2) {
+        numCandidates++;
+    }
+
+    /**
+     * Get the number of candidate pairs that were verified during the last
+     * search.
+     */
+    public long getNumCandidates() {
+        return numCandidates;
+    }
+
+    /**
+     * Get the number of hash values in the signatures.
+     */
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Construct the signatures document by document, only keeping their
+     * lowest bits, so the full signature matrix is never allocated.
+     */
+    private BBitSignatures constructBBitSignatures(short[][] hashValues, int bBits) {
+        BBitSignatures signatures = new BBitSignatures(numDocs, numHashes, bBits, numShingles);
+        short[] signature = new short[numHashes];
+        int d = 0;
+        while (reader.hasNext()) {
+            Set<Integer> shingles = reader.next();
+            Minhash.constructSignature(shingles, hashValues, signature);
+            signatures.set(d++, signature, shingles.size());
+        }
+        System.out.println("Packed " + bBits + "-bit signatures take " + signatures.getSizeInBytes() / (1024 * 1024) + "MB");
+        return signatures;
+    }
+
+    /**
+     * Returns the signature value of a document for a hash function.
+     */
+    private int getSignature(int h, int d) {
+        return bBitSignatures != null ? bBitSignatures.get(h, d) : signatureMatrix.get(d, h);
+    }
+
+    /**
+     * Estimate the similarity of two documents from their signatures. The
+     * comparison may stop early once fewer than minMatches hash values can
+     * agree, in which case the estimate is only known to be below threshold.
+     */
+    private double getSimilarity(int d1, int d2, int minMatches) {
+        if (bBitSignatures != null) return bBitSignatures.similarity(d1, d2);
+
+        double sim = kernel.countMatches(signatureMatrix.getSegment(d1), signatureMatrix.getOffset(d1),
+                signatureMatrix.getSegment(d2), signatureMatrix.getOffset(d2), numHashes, minMatches);
+        return sim/numHashes;
+    }
+
+    /**
+     * Find the buckets of a document in a band: the bucket of its band key,
+     * followed by the buckets of its neighbouring keys when multi-probing.
+     *
+     * @param b          the band
+     * @param d          the document
+     * @param rows       number of rows per band
+     * @param docKey     buffer for the band key
+     * @param probed     buffer marking the rows that were probed
+     * @param docBuckets array to write the distinct bucket indices to
+     * @return the number of distinct buckets
+     */
+    private int getBuckets(int b, int d, int rows, byte[] docKey, boolean[] probed, int[] docBuckets) {
+        // Construct key of current doc in current band
+        for (int row = 0 ; row < rows ; row++) 
+        {
+            docKey[row] = (byte) getSignature(rows*b + row, d);
+        }
+        int numDocBuckets = 0;
+        docBuckets[numDocBuckets++] = getBucket(docKey, rows);
+        if (numProbes == 0) return numDocBuckets;
+
+        // Probe the rows with the smallest gap between minimum and runner-up
+        Arrays.fill(probed, false);
+        for (int p = 0 ; p < numProbes ; p++)
+        {
+            int probeRow = -1;
+            int probeGap = Integer.MAX_VALUE;
+            for (int row = 0 ; row < rows ; row++)
+            {
+                int h = rows*b + row;
+                // a runner-up equal to the minimum can't flip this row, a missing one can't be probed
+                if (probed[row] || runnerUpMatrix.get(d, h) == Short.MAX_VALUE) continue;
+                int gap = runnerUpMatrix.get(d, h) - signatureMatrix.get(d, h);
+                if (gap > 0 && gap < probeGap)
+                {
+                    probeRow = row;
+                    probeGap = gap;
+                }
+            }
+            if (probeRow == -1) break;
+            probed[probeRow] = true;
+
+            docKey[probeRow] = (byte) runnerUpMatrix.get(d, rows*b + probeRow);
+            int index = getBucket(docKey, rows);
+            docKey[probeRow] = (byte) signatureMatrix.get(d, rows*b + probeRow);
+
+            boolean seen = false;
+            for (int k = 0 ; k < numDocBuckets ; k++) seen |= docBuckets[k] == index;
+            if (!seen) docBuckets[numDocBuckets++] = index;
+        }
+        return numDocBuckets;
+    }
+
+    /**
+     * Check whether two documents share a bucket in a band before b, in which
+     * case they were already verified in that band. Only similar pairs are
+     * checked, so recomputing the buckets is cheaper than storing them.
+     */
+    private boolean sharesBucketBefore(int b, int d1, int d2, int rows, byte[] docKey, boolean[] probed, int[] buckets1, int[] buckets2) {
+        for (int prev = 0; prev < b; prev++) {
+            int numBuckets1 = getBuckets(prev, d1, rows, docKey, probed, buckets1);
+            int numBuckets2 = getBuckets(prev, d2, rows, docKey, probed, buckets2);
+            for (int i = 0; i < numBuckets1; i++) {
+                for (int j = 0; j < numBuckets2; j++) {
+                    if (buckets1[i] == buckets2[j]) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hash a band key to a bucket using MurmurHash.
+     */
+    private int getBucket(byte[] docKey, int rows) {
+        return Math.abs(MurmurHash.hash32(docKey, rows, seed)) % numBuckets;
+    }
+}
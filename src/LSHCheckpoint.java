@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Checkpoints of an LSH run, so a run that is killed can be resumed. After
+ * the signatures are constructed, they are written together with the
+ * position of the reader, and after every band the similar pairs found in
+ * that band are written, followed by the progress of the search. Every file
+ * is written under a temporary name and then renamed, so a checkpoint is
+ * either complete or absent. The signatures and the progress start with the
+ * configuration of the run, and are only used to resume a run with the same
+ * configuration.
+ */
+public class LSHCheckpoint {
+
+    /**
+     * Receives the pairs of a band that is replayed from a checkpoint.
+     */
+    public interface PairConsumer {
+        void accept(long id1, long id2, double sim);
+    }
+
+    private final File dir;
+    private final String config;
+    // pairs of the band that is being searched
+    private DataOutputStream bandPairs;
+    private File bandFile;
+
+    /**
+     * Construct the checkpoints of a run.
+     * @param dir the directory to write the checkpoints to
+     * @param config a description of the configuration of the run
+     */
+    public LSHCheckpoint(File dir, String config) {
+        this.dir = dir;
+        this.config = config;
+        dir.mkdirs();
+    }
+
+    /**
+     * Check whether the signatures were written.
+     */
+    public boolean hasSignatures() {
+        return getSignatureFile().exists();
+    }
+
+    /**
+     * Write the signatures and the position of the reader.
+     * @param reader the reader the signatures were constructed from
+     * @param signatureMatrix the signature matrix (numDocs x numHashes)
+     * @param runnerUpMatrix the runner-up matrix, or null
+     */
+    public void writeSignatures(Reader reader, SignatureMatrix signatureMatrix, SignatureMatrix runnerUpMatrix) {
+        int numDocs = reader.getNumDocs();
+        File tmp = new File(dir, getSignatureFile().getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeUTF(config);
+            reader.writePosition(out);
+            int numHashes = signatureMatrix.getNumHashes();
+            out.writeInt(numHashes);
+            out.writeBoolean(runnerUpMatrix != null);
+            for (int d = 0; d < numDocs; d++) {
+                for (int h = 0; h < numHashes; h++) out.writeShort(signatureMatrix.get(d, h));
+                if (runnerUpMatrix != null) {
+                    for (int h = 0; h < numHashes; h++) out.writeShort(runnerUpMatrix.get(d, h));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        commit(tmp, getSignatureFile());
+        System.out.println("Checkpointed the signatures of " + numDocs + " documents");
+    }
+
+    /**
+     * Read the signatures and restore the position of the reader.
+     * @param reader the reader to restore
+     * @param runnerUpMatrix the runner-up matrix to fill, or null
+     * @return the signature matrix (numDocs x numHashes)
+     */
+    public SignatureMatrix readSignatures(Reader reader, SignatureMatrix runnerUpMatrix) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getSignatureFile()), 1 << 16))) {
+            checkConfig(in.readUTF(), getSignatureFile());
+            reader.readPosition(in);
+            int numDocs = reader.getNumDocs();
+            int numHashes = in.readInt();
+            boolean hasRunnerUps = in.readBoolean();
+            if (hasRunnerUps != (runnerUpMatrix != null)) {
+                throw new IllegalStateException("The runner-up matrix of " + getSignatureFile() + " doesn't match the run");
+            }
+            SignatureMatrix signatureMatrix = new SignatureMatrix(numDocs, numHashes);
+            for (int d = 0; d < numDocs; d++) {
+                for (int h = 0; h < numHashes; h++) signatureMatrix.set(d, h, in.readShort());
+                if (hasRunnerUps) {
+                    for (int h = 0; h < numHashes; h++) runnerUpMatrix.set(d, h, in.readShort());
+                }
+            }
+            System.out.println("Resumed the signatures of " + numDocs + " documents");
+            return signatureMatrix;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forget the bands that were completed by an earlier run.
+     */
+    public void clearProgress() {
+        getProgressFile().delete();
+    }
+
+    /**
+     * Get the number of bands that were completed by a search at a threshold.
+     * @param threshold the similarity threshold
+     * @return the number of completed bands, 0 if there is no progress for this threshold
+     */
+    public int getCompletedBands(double threshold) {
+        if (!getProgressFile().exists()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(getProgressFile()))) {
+            checkConfig(in.readUTF(), getProgressFile());
+            return in.readDouble() == threshold ? in.readInt() : 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get the number of candidate pairs verified in the completed bands.
+     */
+    public long getCompletedCandidates() {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(getProgressFile()))) {
+            in.readUTF();
+            in.readDouble();
+            in.readInt();
+            return in.readLong();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Replay the pairs that were found in a completed band.
+     * @param b the band
+     * @param consumer receives every pair
+     */
+    public void readBand(int b, PairConsumer consumer) {
+        File file = getBandFile(b);
+        long numPairs = file.length() / 24;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            for (long i = 0; i < numPairs; i++) {
+                consumer.accept(in.readLong(), in.readLong(), in.readDouble());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Start writing the pairs of a band.
+     */
+    public void startBand(int b) {
+        bandFile = getBandFile(b);
+        try {
+            bandPairs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, bandFile.getName() + ".tmp")), 1 << 16));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a pair that was found in the current band.
+     */
+    public void writePair(long id1, long id2, double sim) {
+        try {
+            bandPairs.writeLong(id1);
+            bandPairs.writeLong(id2);
+            bandPairs.writeDouble(sim);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Complete the current band, after which the search can be resumed
+     * from the next band.
+     * @param b the band
+     * @param threshold the similarity threshold of the search
+     * @param numCandidates number of candidate pairs verified in bands 0 to b
+     */
+    public void completeBand(int b, double threshold, long numCandidates) {
+        File tmp = new File(dir, getProgressFile().getName() + ".tmp");
+        try {
+            bandPairs.close();
+            commit(new File(dir, bandFile.getName() + ".tmp"), bandFile);
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeUTF(config);
+                out.writeDouble(threshold);
+                out.writeInt(b + 1);
+                out.writeLong(numCandidates);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        commit(tmp, getProgressFile());
+    }
+
+    /**
+     * Refuse checkpoints of a run with another configuration.
+     */
+    private void checkConfig(String fileConfig, File file) {
+        if (!fileConfig.equals(config)) {
+            throw new IllegalStateException("Can't resume from " + file + ", which was written with " + fileConfig + " instead of " + config);
+        }
+    }
+
+    /**
+     * Replace a checkpoint file by the temporary file it was written to.
+     */
+    private static void commit(File tmp, File file) {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private File getSignatureFile() {
+        return new File(dir, "signatures.bin");
+    }
+
+    private File getProgressFile() {
+        return new File(dir, "progress.bin");
+    }
+
+    private File getBandFile(int b) {
+        return new File(dir, "band-" + b + ".bin");
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+import java.util.*;
+
+/**
+ * Estimates what a full LSH run will produce before starting it. LSH is run
+ * on a uniform random sample of the documents, and since every pair of
+ * documents is equally likely to be in the sample, the number of candidate
+ * and similar pairs of the sample scale to the corpus by the ratio of the
+ * numbers of pairs. Confidence intervals come from a delete-a-group
+ * jackknife, which accounts for documents that take part in many pairs, as
+ * spam campaigns do. The measured times and the estimated counts are then
+ * extrapolated to the runtime and memory of the full run.
+ */
+public class LSHEstimator
+{
+
+    // number of groups the sample is split into for the jackknife
+    static final int NUM_GROUPS = 20;
+    // z-score of a two-sided 95% confidence interval
+    static final double Z = 1.96;
+    // approximate bytes of a similar pair in a HashSet: the pair, its entry and its share of the table
+    static final int PAIR_BYTES = 88;
+    // approximate bytes of a document in a bucket: a boxed Integer and a reference to it
+    static final int BUCKET_ENTRY_BYTES = 20;
+    // approximate bytes of a bucket that holds documents
+    static final int BUCKET_BYTES = 80;
+
+    SampleReader sample;
+    int numHashes;
+    int numBands;
+    int numBuckets;
+    int numProbes;
+    String hashFamily;
+    int seed;
+    // milliseconds it took to read through all documents to draw the sample
+    long readTime;
+
+    /**
+     * Construct an estimator on a sample of the documents of a reader.
+     *
+     * @param reader     the document reader
+     * @param sampleSize number of documents to sample
+     * @param numHashes  number of hashes to use to construct the signature matrix
+     * @param numBands   number of bands to use during locality sensitive hashing
+     * @param numBuckets number of buckets to use during locality sensitive hashing
+     * @param numProbes  number of neighbouring buckets to probe per band
+     * @param hashFamily family of the MinHash functions, "table" or "murmur"
+     * @param seed       should be used to generate any random numbers needed
+     */
+    public LSHEstimator(Reader reader, int sampleSize, int numHashes, int numBands, int numBuckets, int numProbes, String hashFamily, int seed) {
+        this.numHashes = numHashes;
+        this.numBands = numBands;
+        this.numBuckets = numBuckets;
+        this.numProbes = numProbes;
+        this.hashFamily = hashFamily;
+        this.seed = seed;
+
+        long startTime = System.currentTimeMillis();
+        this.sample = new SampleReader(reader, sampleSize, seed);
+        this.readTime = System.currentTimeMillis() - startTime;
+        System.out.println("Sampled " + sample.getMaxDocs() + " of " + sample.getNumSourceDocs() + " documents");
+    }
+
+    /**
+     * Run LSH on the sample and extrapolate it to all documents.
+     *
+     * @param threshold the similarity threshold
+     * @return tab separated rows of a quantity, its estimate and the bounds of its 95% confidence interval
+     */
+    public List<String> estimate(double threshold) {
+        int n = sample.getMaxDocs();
+        long numDocs = sample.getNumSourceDocs();
+        // candidate pairs of every sampled document, and the candidate pairs within each group
+        long[] candidateDegrees = new long[n];
+        long[] groupCandidates = new long[NUM_GROUPS];
+
+        long startTime = System.currentTimeMillis();
+        LSH lsh = new LSH(sample, numHashes, numBands, numBuckets, numProbes, 0, hashFamily, 1, seed) {
+            @Override
+            protected void countCandidate(int d1, int d2) {
+                super.countCandidate(d1, d2);
+                candidateDegrees[d1]++;
+                candidateDegrees[d2]++;
+                if (d1 % NUM_GROUPS == d2 % NUM_GROUPS) groupCandidates[d1 % NUM_GROUPS]++;
+            }
+        };
+        long signatureTime = System.currentTimeMillis() - startTime;
+        Set<SimilarPair> pairs = lsh.getSimilarPairsAboveThreshold(threshold);
+
+        Map<Long, Integer> externalToSample = new HashMap<Long, Integer>();
+        for (int d = 0; d < n; d++) externalToSample.put(sample.getExternalId(d), d);
+        long[] pairDegrees = new long[n];
+        long[] groupPairs = new long[NUM_GROUPS];
+        for (SimilarPair pair : pairs) {
+            int d1 = externalToSample.get(pair.getId1());
+            int d2 = externalToSample.get(pair.getId2());
+            pairDegrees[d1]++;
+            pairDegrees[d2]++;
+            if (d1 % NUM_GROUPS == d2 % NUM_GROUPS) groupPairs[d1 % NUM_GROUPS]++;
+        }
+
+        double[] candidates = jackknife(lsh.getNumCandidates(), candidateDegrees, groupCandidates, n, numDocs);
+        double[] similar = jackknife(pairs.size(), pairDegrees, groupPairs, n, numDocs);
+
+        // signatures take time per document
+        double signatureSeconds = signatureTime / 1000.0 * numDocs / Math.max(1, n);
+
+        // A search has a fixed cost, a cost per bucket a document goes to and a cost per candidate. Timing
+        // warm searches of the sample and of half of it separates the fixed cost from the cost of the work.
+        LSH full = new LSH(lsh, numBands, numHashes / numBands);
+        startTime = System.nanoTime();
+        full.getSimilarPairsAboveThreshold(threshold);
+        double fullSeconds = (System.nanoTime() - startTime) / 1e9;
+        LSH half = new LSH(new SampleReader(sample, n / 2, seed), numHashes, numBands, numBuckets, numProbes, 0, hashFamily, 1, seed);
+        startTime = System.nanoTime();
+        half.getSimilarPairsAboveThreshold(threshold);
+        double halfSeconds = (System.nanoTime() - startTime) / 1e9;
+
+        double fullWork = getSearchWork(n, full.getNumCandidates());
+        double halfWork = getSearchWork(n / 2, half.getNumCandidates());
+        double secondsPerWork = fullWork > halfWork ? Math.max(0, (fullSeconds - halfSeconds) / (fullWork - halfWork)) : fullSeconds / Math.max(1, fullWork);
+        double fixedSeconds = Math.max(0, fullSeconds - secondsPerWork * fullWork);
+        double[] searchSeconds = new double[3];
+        for (int i = 0; i < 3; i++) searchSeconds[i] = fixedSeconds + secondsPerWork * getSearchWork(numDocs, candidates[i]);
+        double[] totalSeconds = shift(searchSeconds, readTime / 1000.0 + signatureSeconds);
+
+        double mb = 1024 * 1024;
+        double signatureMB = numDocs * (16.0 + 2 * numHashes) * (numProbes > 0 ? 2 : 1) / mb;
+        // buckets are only kept for one band at a time
+        double bucketMB = (Math.min(numBuckets, numDocs) * (double) BUCKET_BYTES + numDocs * (1.0 + numProbes) * BUCKET_ENTRY_BYTES) / mb;
+        double[] resultMB = scale(similar, PAIR_BYTES / mb);
+
+        List<String> report = new ArrayList<String>();
+        report.add("quantity\testimate\tlow\thigh");
+        report.add(row("documents", new double[] { numDocs, numDocs, numDocs }));
+        report.add(row("sampled documents", new double[] { n, n, n }));
+        report.add(row("candidate pairs", candidates));
+        report.add(row("similar pairs", similar));
+        report.add(row("read seconds", new double[] { readTime / 1000.0, readTime / 1000.0, readTime / 1000.0 }));
+        report.add(row("signature seconds", new double[] { signatureSeconds, signatureSeconds, signatureSeconds }));
+        report.add(row("search seconds", searchSeconds));
+        report.add(row("total seconds", totalSeconds));
+        report.add(row("signature MB", new double[] { signatureMB, signatureMB, signatureMB }));
+        report.add(row("bucket MB", new double[] { bucketMB, bucketMB, bucketMB }));
+        report.add(row("result MB", resultMB));
+        return report;
+    }
+
+    /**
+     * Extrapolate a count of pairs in the sample to all documents, with a
+     * delete-a-group jackknife confidence interval. Sampled document d is in
+     * group d % NUM_GROUPS; leaving out a group removes the pairs of its
+     * documents, of which the pairs within the group were removed twice.
+     *
+     * @param count       number of pairs in the sample
+     * @param degrees     number of pairs of every sampled document
+     * @param groupCounts number of pairs within every group
+     * @param n           number of sampled documents
+     * @param numDocs     number of documents
+     * @return the estimate and the bounds of its confidence interval
+     */
+    static double[] jackknife(long count, long[] degrees, long[] groupCounts, int n, long numDocs) {
+        double estimate = count * numPairs(numDocs) / Math.max(1, numPairs(n));
+        if (n >= numDocs || n < 2 * NUM_GROUPS) {
+            return new double[] { estimate, estimate, estimate };
+        }
+
+        long[] removed = new long[NUM_GROUPS];
+        int[] groupSizes = new int[NUM_GROUPS];
+        for (int d = 0; d < n; d++) {
+            removed[d % NUM_GROUPS] += degrees[d];
+            groupSizes[d % NUM_GROUPS]++;
+        }
+        double[] partial = new double[NUM_GROUPS];
+        double mean = 0;
+        for (int g = 0; g < NUM_GROUPS; g++) {
+            partial[g] = (count - removed[g] + groupCounts[g]) * numPairs(numDocs) / numPairs(n - groupSizes[g]);
+            mean += partial[g] / NUM_GROUPS;
+        }
+        double variance = 0;
+        for (int g = 0; g < NUM_GROUPS; g++) {
+            variance += (partial[g] - mean) * (partial[g] - mean);
+        }
+        variance *= (NUM_GROUPS - 1.0) / NUM_GROUPS;
+        double halfWidth = Z * Math.sqrt(variance);
+        return new double[] { estimate, Math.max(0, estimate - halfWidth), estimate + halfWidth };
+    }
+
+    /**
+     * Units of work of a search: every document goes to numProbes + 1
+     * buckets per band, and every candidate is verified.
+     */
+    private double getSearchWork(double numDocs, double numCandidates) {
+        return numDocs * numBands * (numProbes + 1) + numCandidates;
+    }
+
+    /**
+     * Number of unordered pairs of a number of documents.
+     */
+    private static double numPairs(long numDocs) {
+        return numDocs * (numDocs - 1) / 2.0;
+    }
+
+    private static double[] scale(double[] interval, double factor) {
+        return new double[] { interval[0] * factor, interval[1] * factor, interval[2] * factor };
+    }
+
+    private static double[] shift(double[] interval, double offset) {
+        return new double[] { interval[0] + offset, interval[1] + offset, interval[2] + offset };
+    }
+
+    private static String row(String quantity, double[] interval) {
+        return String.format(Locale.ROOT, "%s\t%.1f\t%.1f\t%.1f", quantity, interval[0], interval[1], interval[2]);
+    }
+}
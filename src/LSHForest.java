@@ -0,0 +1,272 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+import java.util.*;
+
+/**
+ * LSH Forest (Bawa et al., 2005) to find similar objects at a threshold that
+ * is chosen when querying rather than when building the index.
+ * <p>
+ * Every tree takes its own maxDepth consecutive hash values of the signature
+ * as the key of a document, and stores the documents sorted on these keys,
+ * together with the length of the common prefix of each document and its
+ * predecessor. All documents that share a prefix of length p are then
+ * adjacent, and form the bucket they would get with banding at p rows per
+ * band. Since p can be chosen per query, one forest serves any threshold, or
+ * a top-k query that lowers p until enough candidates are found.
+ */
+public class LSHForest extends SimilaritySearcher
+{
+
+    int numTrees;
+    int maxDepth;
+    int numHashes;
+    int numShingles;
+    int numDocs;
+    int seed;
+    // probability with which a pair at the threshold should become a candidate
+    double targetRecall = 0.95;
+    // signature of every document, stored contiguously per document
+    SignatureMatrix signatureMatrix;
+    // documents of each tree, sorted on their keys
+    int[][] sortedDocs;
+    // length of the common prefix of each sorted document and its predecessor
+    byte[][] prefixLengths;
+    SignatureKernel kernel = SignatureKernel.create();
+
+    /**
+     * Construct an LSH Forest similarity searcher.
+     *
+     * @param reader     the document reader
+     * @param numTrees   number of prefix trees
+     * @param maxDepth   number of hash values in the key of a tree
+     * @param hashFamily family of the MinHash functions, "table" or "murmur"
+     * @param numThreads number of threads shingling and hashing the documents
+     * @param seed       should be used to generate any random numbers needed
+     */
+    public LSHForest(Reader reader, int numTrees, int maxDepth, String hashFamily, int numThreads, int seed) {
+        super(reader);
+
+        if (maxDepth > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("The depth of a tree can't exceed " + Byte.MAX_VALUE);
+        }
+        this.numTrees = numTrees;
+        this.maxDepth = maxDepth;
+        this.numHashes = numTrees * maxDepth;
+        this.numShingles = reader.getNumShingles();
+        this.seed = seed;
+        short[][] hashValues = Minhash.constructHashTableShort(hashFamily, numHashes, numShingles, seed);
+        this.signatureMatrix = SignaturePipeline.constructSignatureMatrixShort(reader, hashValues, null, numThreads);
+        this.numDocs = reader.getNumDocs();
+
+        this.sortedDocs = new int[numTrees][];
+        this.prefixLengths = new byte[numTrees][];
+        for (int t = 0; t < numTrees; t++) {
+            sortedDocs[t] = sortDocs(t);
+            prefixLengths[t] = new byte[numDocs];
+            for (int i = 1; i < numDocs; i++) {
+                prefixLengths[t][i] = (byte) getPrefixLength(sortedDocs[t][i-1], sortedDocs[t][i], t);
+            }
+        }
+    }
+
+    /**
+     * Sort the documents on their keys in a tree, with a bottom-up merge sort
+     * over int arrays so no document is boxed.
+     * @param t the tree
+     * @return the documents, sorted on their keys
+     */
+    private int[] sortDocs(int t) {
+        int[] docs = new int[numDocs];
+        for (int d = 0; d < numDocs; d++) docs[d] = d;
+        int[] buffer = new int[numDocs];
+        for (int width = 1; width < numDocs; width *= 2) {
+            for (int low = 0; low < numDocs; low += 2 * width) {
+                int mid = Math.min(low + width, numDocs);
+                int high = Math.min(low + 2 * width, numDocs);
+                int i = low;
+                int j = mid;
+                int k = low;
+                while (i < mid && j < high) {
+                    // take from the left run on ties, which keeps the sort stable
+                    buffer[k++] = compareKeys(docs[j], signatureMatrix.getSegment(docs[i]), signatureMatrix.getOffset(docs[i]), t, maxDepth) < 0 ? docs[j++] : docs[i++];
+                }
+                while (i < mid) buffer[k++] = docs[i++];
+                while (j < high) buffer[k++] = docs[j++];
+            }
+            int[] merged = buffer;
+            buffer = docs;
+            docs = merged;
+        }
+        return docs;
+    }
+
+    /**
+     * Set the probability with which pairs at the threshold should become
+     * candidates, which determines the prefix length used for a threshold.
+     */
+    public void setTargetRecall(double targetRecall) {
+        this.targetRecall = targetRecall;
+    }
+
+    /**
+     * Get the longest prefix length for which a pair with the given
+     * similarity becomes a candidate in at least one tree with probability
+     * targetRecall.
+     * @param threshold the similarity threshold
+     * @return the prefix length
+     */
+    public int getDepth(double threshold) {
+        for (int depth = maxDepth; depth > 1; depth--) {
+            if (1 - Math.pow(1 - Math.pow(threshold, depth), numTrees) >= targetRecall) return depth;
+        }
+        return 1;
+    }
+
+    /**
+     * Returns the pairs with similarity above threshold (approximate).
+     */
+    @Override
+    public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
+        Set<SimilarPair> similarPairsAboveThreshold = new HashSet<SimilarPair>();
+        int depth = getDepth(threshold);
+        int minMatches = SignatureKernel.getMinMatches(threshold, numHashes);
+        System.out.println("Searching the forest at prefix length " + depth);
+
+        for (int t = 0; t < numTrees; t++) {
+            int start = 0;
+            while (start < numDocs) {
+                // documents sharing a prefix of length depth are adjacent
+                int end = start + 1;
+                while (end < numDocs && prefixLengths[t][end] >= depth) end++;
+
+                for (int i = start + 1; i < end; i++) {
+                    int d = sortedDocs[t][i];
+                    for (int j = start; j < i; j++) {
+                        int document = sortedDocs[t][j];
+                        // pairs that share the prefix in an earlier tree were verified there
+                        if (sharesPrefixBefore(document, d, t, depth)) continue;
+
+                        double sim = (double) kernel.countMatches(signatureMatrix.getSegment(document), signatureMatrix.getOffset(document),
+                                signatureMatrix.getSegment(d), signatureMatrix.getOffset(d), numHashes, minMatches) / numHashes;
+                        if (sim > getMinSimilarity(threshold)) {
+                            addSimilarPair(similarPairsAboveThreshold, reader.getExternalId(document), reader.getExternalId(d), sim);
+                            minMatches = SignatureKernel.getMinMatches(getMinSimilarity(threshold), numHashes);
+                        }
+                    }
+                }
+                start = end;
+            }
+        }
+        return similarPairsAboveThreshold;
+    }
+
+    /**
+     * Returns the k documents most similar to a document (approximate).
+     * @param doc internal id of the document
+     * @param k number of documents to return
+     * @return pairs of the document and its most similar documents, most similar first
+     */
+    public List<SimilarPair> getMostSimilar(int doc, int k) {
+        return getMostSimilar(signatureMatrix.getSegment(doc), signatureMatrix.getOffset(doc), doc, k);
+    }
+
+    /**
+     * Returns the k documents most similar to a signature (approximate). The
+     * prefix length is lowered from maxDepth until the trees hold at least
+     * twice k candidates, which are then verified on their full signatures.
+     * @param signature the signature to query for, with numTrees * maxDepth hash values
+     * @param doc internal id of the queried document, or -1 for a signature outside the corpus
+     * @param k number of documents to return
+     * @return pairs of the query and its most similar documents, most similar first
+     */
+    public List<SimilarPair> getMostSimilar(short[] signature, int doc, int k) {
+        return getMostSimilar(signature, 0, doc, k);
+    }
+
+    /**
+     * Returns the k documents most similar to a signature at an offset in a
+     * larger array (approximate).
+     */
+    private List<SimilarPair> getMostSimilar(short[] signature, int offset, int doc, int k) {
+        Set<Integer> candidates = new HashSet<Integer>();
+        for (int depth = maxDepth; depth > 0 && candidates.size() < 2 * k; depth--) {
+            for (int t = 0; t < numTrees; t++) {
+                int from = findBound(signature, offset, t, depth, false);
+                int to = findBound(signature, offset, t, depth, true);
+                for (int i = from; i < to; i++) {
+                    if (sortedDocs[t][i] != doc) candidates.add(sortedDocs[t][i]);
+                }
+            }
+        }
+
+        long queryId = doc >= 0 ? reader.getExternalId(doc) : -1;
+        List<SimilarPair> mostSimilar = new ArrayList<SimilarPair>();
+        for (int candidate : candidates) {
+            double sim = (double) kernel.countMatches(signature, offset, signatureMatrix.getSegment(candidate), signatureMatrix.getOffset(candidate), numHashes, 0) / numHashes;
+            mostSimilar.add(new SimilarPair(queryId, reader.getExternalId(candidate), sim));
+        }
+        Collections.sort(mostSimilar, Collections.reverseOrder());
+        return mostSimilar.subList(0, Math.min(k, mostSimilar.size()));
+    }
+
+    /**
+     * Binary search the sorted documents of a tree for the first document
+     * whose key prefix is at least (lower bound) or greater than (upper
+     * bound) the prefix of a signature.
+     */
+    private int findBound(short[] signature, int offset, int t, int depth, boolean upper) {
+        int low = 0;
+        int high = numDocs;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKeys(sortedDocs[t][mid], signature, offset, t, depth);
+            if (cmp < 0 || (upper && cmp == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Check whether two documents share a prefix of the given length in a
+     * tree before t.
+     */
+    private boolean sharesPrefixBefore(int d1, int d2, int t, int depth) {
+        for (int prev = 0; prev < t; prev++) {
+            if (getPrefixLength(d1, d2, prev) >= depth) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compare the first depth hash values of the key of a document in a tree
+     * with those of a signature at an offset in a larger array.
+     */
+    private int compareKeys(int d, short[] signature, int offset, int t, int depth) {
+        short[] segment = signatureMatrix.getSegment(d);
+        int docOffset = signatureMatrix.getOffset(d);
+        for (int h = t * maxDepth; h < t * maxDepth + depth; h++) {
+            short value = segment[docOffset + h];
+            if (value != signature[offset + h]) return value < signature[offset + h] ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Get the length of the common prefix of the keys of two documents in a tree.
+     */
+    private int getPrefixLength(int d1, int d2, int t) {
+        short[] segment1 = signatureMatrix.getSegment(d1);
+        short[] segment2 = signatureMatrix.getSegment(d2);
+        int offset1 = signatureMatrix.getOffset(d1) + t * maxDepth;
+        int offset2 = signatureMatrix.getOffset(d2) + t * maxDepth;
+        int length = 0;
+        while (length < maxDepth && segment1[offset1 + length] == segment2[offset2 + length]) length++;
+        return length;
+    }
+}
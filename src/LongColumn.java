@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A growable column of longs with one value per document, stored in a
+ * primitive array rather than as boxed Longs. Once all documents are read,
+ * the column can be spilled to a file and memory-mapped, which moves it off
+ * the heap, e.g. next to the other files of an out-of-core run. A spilled
+ * column is read-only.
+ */
+public class LongColumn {
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private long[] values;
+    private int size;
+    // the values once the column is spilled
+    private LongBuffer mapped;
+
+    /**
+     * Construct an empty column.
+     */
+    public LongColumn() {
+        this.values = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Construct a column of zeros for a known number of documents. Threads
+     * may set the values of different documents at once, as long as none of
+     * them grows the column.
+     * @param size the number of documents
+     */
+    public LongColumn(int size) {
+        this.values = new long[Math.max(1, size)];
+        this.size = size;
+    }
+
+    /**
+     * Append a value.
+     */
+    public void add(long value) {
+        set(size, value);
+    }
+
+    /**
+     * Set the value of a document, growing the column with zeros if needed.
+     */
+    public void set(int i, long value) {
+        if (mapped != null) {
+            throw new IllegalStateException("A spilled column is read-only");
+        }
+        if (i >= values.length) {
+            values = Arrays.copyOf(values, Math.max(2 * values.length, i + 1));
+        }
+        values[i] = value;
+        size = Math.max(size, i + 1);
+    }
+
+    /**
+     * Returns the value of a document.
+     */
+    public long get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " out of bounds for length " + size);
+        }
+        return mapped != null ? mapped.get(i) : values[i];
+    }
+
+    /**
+     * Returns the number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Write the column to a file and map it back into memory, releasing the
+     * array on the heap.
+     * @param file the file to write the column to
+     */
+    public void spill(File file) throws IOException {
+        if (mapped != null) {
+            return;
+        }
+        if ((long) size * Long.BYTES > Integer.MAX_VALUE) {
+            throw new IOException("A column of " + size + " values is too large to map");
+        }
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) size * Long.BYTES);
+            buffer.asLongBuffer().put(values, 0, size);
+            mapped = buffer.asLongBuffer();
+        }
+        values = null;
+    }
+}
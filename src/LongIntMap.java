@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.Arrays;
+
+/**
+ * Map from longs to non-negative ints, stored in primitive arrays with open
+ * addressing, so an entry takes a long and an int rather than a boxed key,
+ * a boxed value and an entry object.
+ */
+public class LongIntMap {
+
+    private long[] keys;
+    // value of every slot, -1 for an empty slot
+    private int[] values;
+    private int slotBits;
+    private int size;
+
+    /**
+     * Construct an empty map.
+     */
+    public LongIntMap() {
+        slotBits = 10;
+        keys = new long[1 << slotBits];
+        values = new int[1 << slotBits];
+        Arrays.fill(values, -1);
+    }
+
+    /**
+     * Returns the value of a key, or -1 if the key is absent.
+     */
+    public int get(long key) {
+        int mask = values.length - 1;
+        for (int slot = getSlot(key); values[slot] != -1; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return values[slot];
+        }
+        return -1;
+    }
+
+    /**
+     * Map a key to a value.
+     * @param key the key
+     * @param value the value, at least 0
+     */
+    public void put(long key, int value) {
+        int mask = values.length - 1;
+        int slot = getSlot(key);
+        while (values[slot] != -1 && keys[slot] != key) slot = (slot + 1) & mask;
+        if (values[slot] == -1) size++;
+        keys[slot] = key;
+        values[slot] = value;
+
+        // keep the table at most half full
+        if (2 * size > values.length) rehash();
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Double the table.
+     */
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        slotBits++;
+        keys = new long[1 << slotBits];
+        values = new int[1 << slotBits];
+        Arrays.fill(values, -1);
+        int mask = values.length - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == -1) continue;
+            int slot = getSlot(oldKeys[i]);
+            while (values[slot] != -1) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    /**
+     * Get the home slot of a key with Fibonacci hashing.
+     */
+    private int getSlot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - slotBits));
+    }
+}
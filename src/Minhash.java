@@ -4,9 +4,11 @@
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * Class for computing MinHash signatures.
@@ -33,14 +35,15 @@ public final class Minhash {
 
         Random rn = new Random(seed);
         int a, b;
-        int prime = Primes.findLeastPrimeNumber(numHashes);
+        // the prime should exceed the number of rows, otherwise only the first p rows are hashed to
+        int prime = Primes.findLeastPrimeNumber(numValues);
 
         for (int i = 0; i < numHashes; i++) {
             // h(x) = ((a.x + b) mod p) mod #rows
             a = Math.abs(rn.nextInt(prime));
             b = Math.abs(rn.nextInt(prime));
             for (int j = 0; j < numValues; j++) {
-                hashes[j][i] = ((a*j + b) % prime) % numValues;
+                hashes[j][i] = (int) (((long) a*j + b) % prime) % numValues;
             }    
         }
         return hashes;
@@ -67,6 +70,7 @@ public final class Minhash {
         /* One Pass Implementation */
         // Loop trough documents first
         Set<Integer> shinglesIndex;
+        int doc = 0;
         while (reader.hasNext()) {
             shinglesIndex = reader.next();
             // Loop trough rows of the document
@@ -74,64 +78,215 @@ public final class Minhash {
                 // If row index is in set, use hash-value for signature
                 for (int h = 0; h < numHashes; h++) {
                     // If the hash-value is smaller than the current hash-value
-                    if (hashValues[row][h] < signatureMatrix[h][reader.curDoc]) {
-                        signatureMatrix[h][reader.curDoc] = hashValues[row][h];
+                    if (hashValues[row][h] < signatureMatrix[h][doc]) {
+                        signatureMatrix[h][doc] = hashValues[row][h];
                     }
                 }
             }
+            doc++;
         }
         
         return signatureMatrix;
     }
 
-        
+    /**
+     * Construct the table of hash values of the given hash family.
+     *
+     * @param hashFamily "table" for random (a.x + b) mod p hashes, "murmur" for double hashing a MurmurHash3
+     * @param numHashes  number of hashes that will be used in the signature matrix
+     * @param numValues  number of unique values that occur in the object set representations
+     * @param seed       should be used to generate any random numbers needed
+     * @return the (numValues x numHashes) matrix of hash values
+     */
+    public static short[][] constructHashTableShort(String hashFamily, int numHashes, int numValues, int seed)
+    {
+        if (hashFamily.equals("murmur")) {
+            return constructHashTableMurmur(numHashes, numValues, seed);
+        } else if (hashFamily.equals("table")) {
+            return constructHashTableShort(numHashes, numValues, seed);
+        }
+        throw new IllegalArgumentException("Unknown hash family '" + hashFamily + "', should be table or murmur");
+    }
+
     public static short[][] constructHashTableShort(int numHashes, int numValues, int seed)
+    {
+        // the prime should exceed the number of rows, otherwise only the first p rows are hashed to
+        return constructHashTableShort(numHashes, numValues, seed, Primes.findLeastPrimeNumber(numValues));
+    }
+
+    /**
+     * Construct the table of random (a.x + b) mod p hash values for a given
+     * prime p. With a prime below the number of rows, e.g. the one following
+     * numHashes that was used originally, all values fall below p.
+     *
+     * @param numHashes number of hashes that will be used in the signature matrix
+     * @param numValues number of unique values that occur in the object set representations (i.e. number of rows of the characteristic matrix)
+     * @param seed      should be used to generate any random numbers needed
+     * @param prime     the prime p
+     * @return the (numValues x numHashes) matrix of hash values
+     */
+    public static short[][] constructHashTableShort(int numHashes, int numValues, int seed, int prime)
     {
         short[][] hashes = new short[numValues][numHashes];
 
         Random rn = new Random(seed);
         int a, b;
-        int prime = Primes.findLeastPrimeNumber(numHashes);
 
         for (int i = 0; i < numHashes; i++) {
             // h(x) = ((a.x + b) mod p) mod #rows
             a = Math.abs(rn.nextInt(prime));
             b = Math.abs(rn.nextInt(prime));
             for (int j = 0; j < numValues; j++) {
-                hashes[j][i] = (short) (((a*j + b) % prime) % numValues);
+                hashes[j][i] = (short) ((((long) a*j + b) % prime) % numValues);
             }    
         }
         return hashes;
     }
-    
-    public static short[][] constructSignatureMatrixShort(Reader reader, short[][] hashValues)
+
+    /**
+     * Construct the table of hash values from a single 128 bit MurmurHash3
+     * per row. Following Kirsch and Mitzenmacher, hash function i is derived
+     * from both halves h1 and h2 as h1 + i.h2, which needs no random numbers
+     * and no modular arithmetic per hash. The top 15 bits are kept, so the
+     * values spread over the full range of a short instead of over the
+     * number of rows, which makes ties between rows rare.
+     *
+     * @param numHashes number of hashes that will be used in the signature matrix
+     * @param numValues number of unique values that occur in the object set representations (i.e. number of rows of the characteristic matrix)
+     * @param seed      seed of the MurmurHash3
+     * @return the (numValues x numHashes) matrix of hash values
+     */
+    public static short[][] constructHashTableMurmur(int numHashes, int numValues, int seed)
     {
-        int numHashes = hashValues[0].length;
-        int numDocs = reader.maxDocs;
-        short[][] signatureMatrix = new short[numHashes][numDocs];
+        short[][] hashes = new short[numValues][numHashes];
 
-        // Initialize signature matrix with infinity
-        for (short i = 0; i < numHashes; i++) {
-            for (int j = 0; j < numDocs; j++) signatureMatrix[i][j] = Short.MAX_VALUE;
+        for (int j = 0; j < numValues; j++) {
+            long[] hash = MurmurHash.hash128(j, seed);
+            long combined = hash[0];
+            for (int i = 0; i < numHashes; i++) {
+                // Short.MAX_VALUE is reserved for empty signatures
+                hashes[j][i] = (short) Math.min(combined >>> 49, Short.MAX_VALUE - 1);
+                combined += hash[1];
+            }
         }
+        return hashes;
+    }
+    
+    public static SignatureMatrix constructSignatureMatrixShort(Reader reader, short[][] hashValues)
+    {
+        return constructSignatureMatrixShort(reader, hashValues, null);
+    }
+
+    /**
+     * Construct the signature matrix, and optionally keep track of the
+     * runner-up of each minimum, i.e. the second smallest hash value of the
+     * document. The gap between both tells how easily a row flips when the
+     * document loses a shingle, which is what multi-probe LSH relies on.
+     * <p>
+     * Contrary to constructSignatureMatrix, the matrix is stored document by
+     * document, so the signature of a document is contiguous in memory.
+     *
+     * @param reader         iterator returning the set represenation of objects for which the signature matrix should be constructed
+     * @param hashValues     (numValues x numHashes) matrix of hash values
+     * @param runnerUpMatrix (numObjects x numHashes) matrix to fill with the second smallest hash values, or null
+     * @return signatureMatrix      the signature matrix (numObjects x numHashes)
+     */
+    public static SignatureMatrix constructSignatureMatrixShort(Reader reader, short[][] hashValues, SignatureMatrix runnerUpMatrix)
+    {
+        // initialized with infinity
+        SignatureMatrix signatureMatrix = new SignatureMatrix(reader.maxDocs, hashValues[0].length);
 
         /* One Pass Implementation */
         // Loop trough documents first
         Set<Integer> shinglesIndex;
+        int doc = 0;
         while (reader.hasNext()) {
             shinglesIndex = reader.next();
-            // Loop trough rows of the document
-            for (int row: shinglesIndex) {
-                // If row index is in set, use hash-value for signature
-                for (short h = 0; h < numHashes; h++) {
-                    // If the hash-value is smaller than the current hash-value
-                    if (hashValues[row][h] < signatureMatrix[h][reader.curDoc]) {
-                        signatureMatrix[h][reader.curDoc] = hashValues[row][h];
-                    }
-                }
-            }
+            constructSignature(shinglesIndex, hashValues, signatureMatrix, runnerUpMatrix, doc);
+            doc++;
         }
         
         return signatureMatrix;
     }
+
+    /**
+     * Construct the signature matrix from a stream of documents. Every
+     * document writes its own row, so a parallel stream needs no locking.
+     *
+     * @param documents      the documents, possibly a parallel stream
+     * @param numDocs        number of objects (i.e. number of rows of the signature matrix)
+     * @param hashValues     (numValues x numHashes) matrix of hash values
+     * @param runnerUpMatrix (numObjects x numHashes) matrix to fill with the second smallest hash values, or null
+     * @return signatureMatrix      the signature matrix (numObjects x numHashes)
+     */
+    public static SignatureMatrix constructSignatureMatrixShort(Stream<Document> documents, int numDocs, short[][] hashValues, SignatureMatrix runnerUpMatrix)
+    {
+        SignatureMatrix signatureMatrix = new SignatureMatrix(numDocs, hashValues[0].length);
+        documents.forEach(doc -> constructSignature(doc.getShingles(), hashValues, signatureMatrix, runnerUpMatrix, doc.getIndex()));
+        return signatureMatrix;
+    }
+
+    /**
+     * Compute the signature of a single document into its row of a
+     * signature matrix, and optionally the runner-up of each minimum.
+     *
+     * @param shingles       the set representation of the document
+     * @param hashValues     (numValues x numHashes) matrix of hash values
+     * @param signatureMatrix the signature matrix to write the signature to
+     * @param runnerUpMatrix the matrix to write the second smallest hash values to, or null
+     * @param doc            the document
+     */
+    public static void constructSignature(Set<Integer> shingles, short[][] hashValues, SignatureMatrix signatureMatrix,
+                                          SignatureMatrix runnerUpMatrix, int doc)
+    {
+        constructSignature(shingles, hashValues, signatureMatrix.getNumHashes(), signatureMatrix.getSegment(doc),
+                runnerUpMatrix != null ? runnerUpMatrix.getSegment(doc) : null, signatureMatrix.getOffset(doc));
+    }
+
+    /**
+     * Compute the signature of a single document.
+     *
+     * @param shingles   the set representation of the document
+     * @param hashValues (numValues x numHashes) matrix of hash values
+     * @param signature  array of length numHashes to write the signature to
+     */
+    public static void constructSignature(Set<Integer> shingles, short[][] hashValues, short[] signature)
+    {
+        constructSignature(shingles, hashValues, signature, null);
+    }
+
+    /**
+     * Compute the signature of a single document, and optionally the
+     * runner-up of each minimum.
+     *
+     * @param shingles   the set representation of the document
+     * @param hashValues (numValues x numHashes) matrix of hash values
+     * @param signature  array of length numHashes to write the signature to
+     * @param runnerUp   array of length numHashes to write the second smallest hash values to, or null
+     */
+    public static void constructSignature(Set<Integer> shingles, short[][] hashValues, short[] signature, short[] runnerUp)
+    {
+        constructSignature(shingles, hashValues, signature.length, signature, runnerUp, 0);
+    }
+
+    /**
+     * Compute the signature of a single document at an offset in a larger
+     * array, and optionally the runner-up of each minimum at the same offset.
+     */
+    private static void constructSignature(Set<Integer> shingles, short[][] hashValues, int numHashes, short[] signature,
+                                           short[] runnerUp, int offset)
+    {
+        Arrays.fill(signature, offset, offset + numHashes, Short.MAX_VALUE);
+        if (runnerUp != null) Arrays.fill(runnerUp, offset, offset + numHashes, Short.MAX_VALUE);
+        for (int row: shingles) {
+            for (int h = 0; h < numHashes; h++) {
+                if (hashValues[row][h] < signature[offset + h]) {
+                    if (runnerUp != null) runnerUp[offset + h] = signature[offset + h];
+                    signature[offset + h] = hashValues[row][h];
+                } else if (runnerUp != null && hashValues[row][h] < runnerUp[offset + h]) {
+                    runnerUp[offset + h] = hashValues[row][h];
+                }
+            }
+        }
+    }
 }
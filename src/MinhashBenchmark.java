@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmarks the MinHash hash families against each other. For every family
+ * it measures the time to construct the hash table and the signatures of
+ * random documents, and the error of the estimated similarity of pairs of
+ * documents with a known Jaccard similarity. Besides the table and murmur
+ * families, table-original is the table with its prime taken from numHashes
+ * rather than from the number of rows, as the default table was built
+ * before murmur was added.
+ *
+ * Example command:
+ *  java MinhashBenchmark -numShingles 1000 -numHashes 84 -numDocs 100000 -shinglesPerDoc 40
+ */
+public class MinhashBenchmark {
+
+    public static void main(String[] args) {
+        int numShingles = 1000;
+        int numHashes = 84;
+        int numDocs = 100000;
+        int shinglesPerDoc = 40;
+        int seed = 1234;
+
+        int i = 0;
+        while (i < args.length && args[i].startsWith("-")) {
+            String arg = args[i];
+            if (arg.equals("-numShingles")) {
+                numShingles = Integer.parseInt(args[i+1]);
+            } else if (arg.equals("-numHashes")) {
+                numHashes = Integer.parseInt(args[i+1]);
+            } else if (arg.equals("-numDocs")) {
+                numDocs = Integer.parseInt(args[i+1]);
+            } else if (arg.equals("-shinglesPerDoc")) {
+                shinglesPerDoc = Integer.parseInt(args[i+1]);
+            } else if (arg.equals("-seed")) {
+                seed = Integer.parseInt(args[i+1]);
+            }
+            i += 2;
+        }
+
+        // pairs of documents where the second one replaces part of the shingles of the first
+        Random rn = new Random(seed);
+        Set<Integer>[] docs = newSetArray(numDocs);
+        double[] jaccard = new double[numDocs / 2];
+        for (int d = 0; d < numDocs; d += 2) {
+            docs[d] = randomSet(rn, shinglesPerDoc, numShingles);
+            docs[d+1] = new HashSet<Integer>();
+            int keep = rn.nextInt(shinglesPerDoc + 1);
+            for (int shingle : docs[d]) {
+                if (docs[d+1].size() < keep) docs[d+1].add(shingle);
+            }
+            while (docs[d+1].size() < shinglesPerDoc) docs[d+1].add(rn.nextInt(numShingles));
+            Set<Integer> intersection = new HashSet<Integer>(docs[d]);
+            intersection.retainAll(docs[d+1]);
+            jaccard[d / 2] = (double) intersection.size() / (docs[d].size() + docs[d+1].size() - intersection.size());
+        }
+
+        System.out.println("family\ttable (ms)\tsignatures (ms)\tmean abs error\tdistinct values");
+        for (String family : new String[] { "table", "table-original", "murmur" }) {
+            // warm up, then measure
+            benchmark(family, docs, jaccard, numHashes, numShingles, seed, false);
+            benchmark(family, docs, jaccard, numHashes, numShingles, seed, true);
+        }
+    }
+
+    private static void benchmark(String family, Set<Integer>[] docs, double[] jaccard, int numHashes, int numShingles, int seed, boolean report) {
+        long start = System.nanoTime();
+        short[][] hashValues = family.equals("table-original")
+                ? Minhash.constructHashTableShort(numHashes, numShingles, seed, Primes.findLeastPrimeNumber(numHashes))
+                : Minhash.constructHashTableShort(family, numHashes, numShingles, seed);
+        long tableTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        short[][] signatures = new short[docs.length][numHashes];
+        for (int d = 0; d < docs.length; d++) {
+            Minhash.constructSignature(docs[d], hashValues, signatures[d]);
+        }
+        long signatureTime = System.nanoTime() - start;
+
+        double error = 0;
+        for (int d = 0; d < docs.length; d += 2) {
+            int matches = 0;
+            for (int h = 0; h < numHashes; h++) {
+                if (signatures[d][h] == signatures[d+1][h]) matches++;
+            }
+            error += Math.abs((double) matches / numHashes - jaccard[d / 2]);
+        }
+
+        Set<Short> distinct = new HashSet<Short>();
+        for (short[] row : hashValues) {
+            for (short value : row) distinct.add(value);
+        }
+
+        if (report) {
+            System.out.println(family + "\t" + tableTime / 1000000.0 + "\t" + signatureTime / 1000000.0 + "\t"
+                    + error / jaccard.length + "\t" + distinct.size());
+        }
+    }
+
+    private static Set<Integer> randomSet(Random rn, int size, int numShingles) {
+        Set<Integer> set = new HashSet<Integer>();
+        while (set.size() < size) set.add(rn.nextInt(numShingles));
+        return set;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Set<Integer>[] newSetArray(int size) {
+        return (Set<Integer>[]) new Set[size];
+    }
+}
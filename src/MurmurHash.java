@@ -5,6 +5,8 @@
  * http://murmurhash.googlepages.com/ for platforms with efficient
  * multiplication.
  * 
+ * Also includes the 128 bit x64 variant of murmur hash 3.0.
+ * 
  * This is a re-implementation of the original C code plus some
  * additional features.
  * 
@@ -164,4 +166,118 @@ public final class MurmurHash {
         return hash64(bytes, bytes.length, seed);
     }
 
+
+    /** 
+     * Generates 128 bit hash from byte array of the given length and seed,
+     * using the x64 variant of murmur hash 3.0.
+     * 
+     * @param data byte array to hash
+     * @param length length of the array to hash
+     * @param seed initial seed value
+     * @return the two 64 bit halves of the 128 bit hash of the given array
+     */
+    @SuppressWarnings("fallthrough")
+    public static long[] hash128(final byte[] data, int length, int seed) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+
+        long h1 = seed&0xffffffffL;
+        long h2 = seed&0xffffffffL;
+
+        int length16 = length/16;
+
+        for (int i=0; i<length16; i++) {
+            final int i16 = i*16;
+            long k1 = getLong(data, i16);
+            long k2 = getLong(data, i16+8);
+
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1*5+0x52dce729;
+
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2*5+0x38495ab5;
+        }
+
+        // Handle the last few bytes of the input array
+        final int tail = length&~15;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length%16) {
+            case 15: k2 ^= (long)(data[tail+14]&0xff) << 48;
+            case 14: k2 ^= (long)(data[tail+13]&0xff) << 40;
+            case 13: k2 ^= (long)(data[tail+12]&0xff) << 32;
+            case 12: k2 ^= (long)(data[tail+11]&0xff) << 24;
+            case 11: k2 ^= (long)(data[tail+10]&0xff) << 16;
+            case 10: k2 ^= (long)(data[tail+9]&0xff) << 8;
+            case 9:  k2 ^= (long)(data[tail+8]&0xff);
+                     k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            case 8:  k1 ^= (long)(data[tail+7]&0xff) << 56;
+            case 7:  k1 ^= (long)(data[tail+6]&0xff) << 48;
+            case 6:  k1 ^= (long)(data[tail+5]&0xff) << 40;
+            case 5:  k1 ^= (long)(data[tail+4]&0xff) << 32;
+            case 4:  k1 ^= (long)(data[tail+3]&0xff) << 24;
+            case 3:  k1 ^= (long)(data[tail+2]&0xff) << 16;
+            case 2:  k1 ^= (long)(data[tail+1]&0xff) << 8;
+            case 1:  k1 ^= (long)(data[tail]&0xff);
+                     k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        return new long[] { h1, h2 };
+    }
+
+    /** 
+     * Generates 128 bit hash from an int, e.g. a shingle index, using the
+     * x64 variant of murmur hash 3.0.
+     * 
+     * @param value int to hash, taken as 4 little endian bytes
+     * @param seed initial seed value
+     * @return the two 64 bit halves of the 128 bit hash of the given int
+     */
+    public static long[] hash128(int value, int seed) {
+        final byte[] bytes = { (byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24) };
+        return hash128(bytes, bytes.length, seed);
+    }
+
+    /** 
+     * Generates 128 bit hash from a string.
+     * 
+     * @param text string to hash
+     * @param seed initial seed value
+     * @return the two 64 bit halves of the 128 bit hash of the given string
+     */
+    public static long[] hash128(final String text, int seed) {
+        final byte[] bytes = text.getBytes(); 
+        return hash128(bytes, bytes.length, seed);
+    }
+
+    // read 8 bytes as a little endian long
+    private static long getLong(final byte[] data, int i) {
+        return ((long)data[i+0]&0xff)      +(((long)data[i+1]&0xff)<<8)
+            +(((long)data[i+2]&0xff)<<16) +(((long)data[i+3]&0xff)<<24)
+            +(((long)data[i+4]&0xff)<<32) +(((long)data[i+5]&0xff)<<40)
+            +(((long)data[i+6]&0xff)<<48) +(((long)data[i+7]&0xff)<<56);
+    }
+
+    // final avalanche of murmur hash 3.0
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
 }
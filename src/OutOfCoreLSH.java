@@ -0,0 +1,352 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Out-of-core implementation of minhash and locality sensitive hashing (LSH)
+ * that runs within a fixed memory budget.
+ * <p>
+ * Instead of keeping the signature matrix and the buckets of a band on the
+ * heap, the signatures are written to disk and memory-mapped, and every band
+ * spills its (band key, doc id) records to disk partitions based on a prefix
+ * of the band key hash. Partitions are sized to fit the memory budget and are
+ * processed one at a time: the records are sorted on their band key, after
+ * which documents with the same key are adjacent and can be compared. The
+ * size of the corpus is thus limited by disk space rather than heap space.
+ * The external ids of the documents are memory-mapped as well.
+ * <p>
+ * The similar pairs can be spilled too: writeSimilarPairs writes them to one
+ * file per number of matching hash values, and concatenates these from the
+ * most to the least similar into the output, so the result isn't held in
+ * memory either. getSimilarPairsAboveThreshold still collects the pairs in
+ * a set, e.g. to keep the top pairs or to cluster them.
+ */
+public class OutOfCoreLSH extends SimilaritySearcher
+{
+
+    // bytes a spilled record takes in memory while its partition is processed
+    private static final int RECORD_SIZE = 8;
+
+    /**
+     * Receives the similar pairs of a search.
+     */
+    private interface PairSink {
+        void accept(int d1, int d2, int matches) throws IOException;
+    }
+
+    int numHashes;
+    int numBands;
+    int numShingles;
+    int numDocs;
+    int seed;
+    long memoryBudget;
+    File spillDir;
+    File signatureFile;
+    // doc-major signatures, split over segments because a mapping can't exceed 2GB
+    MappedByteBuffer[] signatureSegments;
+    int docsPerSegment;
+
+    /**
+     * Construct an out-of-core LSH similarity searcher.
+     *
+     * @param reader       the document reader
+     * @param numHashes    number of hashes to use to construct the signature matrix
+     * @param numBands     number of bands to use during locality sensitive hashing
+     * @param memoryBudget number of bytes the records of one partition may use
+     * @param spillDir     directory to write the signatures and partitions to
+     * @param hashFamily   family of the MinHash functions, "table" or "murmur"
+     * @param seed         should be used to generate any random numbers needed
+     */
+    public OutOfCoreLSH(Reader reader, int numHashes, int numBands, long memoryBudget, File spillDir, String hashFamily, int seed) {
+        super(reader);
+
+        this.numHashes = numHashes;
+        this.numBands = numBands;
+        this.numShingles = reader.getNumShingles();
+        this.memoryBudget = memoryBudget;
+        this.spillDir = spillDir;
+        this.seed = seed;
+        try {
+            writeSignatures(Minhash.constructHashTableShort(hashFamily, numHashes, numShingles, seed));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Construct the signatures document by document, write them to disk and
+     * map the resulting file back into memory.
+     */
+    private void writeSignatures(short[][] hashValues) throws IOException {
+        signatureFile = File.createTempFile("signatures", ".bin", spillDir);
+        signatureFile.deleteOnExit();
+
+        short[] signature = new short[numHashes];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(signatureFile), 1 << 16))) {
+            while (reader.hasNext()) {
+                Minhash.constructSignature(reader.next(), hashValues, signature);
+                for (int h = 0; h < numHashes; h++) out.writeShort(signature[h]);
+                numDocs++;
+            }
+        }
+
+        docsPerSegment = Integer.MAX_VALUE / (2 * numHashes);
+        int numSegments = (numDocs + docsPerSegment - 1) / docsPerSegment;
+        signatureSegments = new MappedByteBuffer[numSegments];
+        try (FileChannel channel = new RandomAccessFile(signatureFile, "r").getChannel()) {
+            for (int s = 0; s < numSegments; s++) {
+                long start = (long) s * docsPerSegment * numHashes * 2;
+                long size = Math.min((long) docsPerSegment * numHashes * 2, channel.size() - start);
+                signatureSegments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            }
+        }
+
+        // keep the external ids next to the signatures, off the heap
+        File idFile = File.createTempFile("ids", ".bin", spillDir);
+        idFile.deleteOnExit();
+        reader.idToDoc.spill(idFile);
+    }
+
+    /**
+     * Returns the signature value of a document for a hash function.
+     */
+    private short getSignature(int h, int d) {
+        return signatureSegments[d / docsPerSegment].getShort(((d % docsPerSegment) * numHashes + h) * 2);
+    }
+
+    /**
+     * Returns the pairs with similarity above threshold (approximate).
+     */
+    @Override
+    public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
+        Set<SimilarPair> similarPairsAboveThreshold = new HashSet<SimilarPair>();
+        search(threshold, (d1, d2, matches) -> addSimilarPair(similarPairsAboveThreshold,
+                reader.getExternalId(d1), reader.getExternalId(d2), (double) matches / numHashes));
+        return similarPairsAboveThreshold;
+    }
+
+    /**
+     * Write the pairs with similarity above threshold (approximate) to a
+     * file, most similar first, without holding them in memory. The pairs are
+     * spilled to one file per number of matching hash values, with write
+     * buffers that fit the memory budget. When the reader collapsed
+     * duplicates, the pairs are expanded to the documents they stand for
+     * while they are written.
+     *
+     * @param threshold  the similarity threshold
+     * @param outputFile the file to write the pairs to
+     * @return the number of pairs written
+     */
+    public long writeSimilarPairs(double threshold, String outputFile) {
+        int minMatches = SignatureKernel.getMinMatches(threshold, numHashes);
+        int numLevels = Math.max(0, numHashes - minMatches + 1);
+        File[] levels = new File[numLevels];
+        DataOutputStream[] outs = new DataOutputStream[numLevels];
+        int bufferSize = (int) Math.max(512, Math.min(1 << 16, memoryBudget / Math.max(1, numLevels)));
+        long numPairs = 0;
+        try {
+            try {
+                for (int l = 0; l < numLevels; l++) {
+                    levels[l] = File.createTempFile("pairs" + (minMatches + l) + "-", ".bin", spillDir);
+                    levels[l].deleteOnExit();
+                    outs[l] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(levels[l]), bufferSize));
+                }
+                search(threshold, (d1, d2, matches) -> {
+                    outs[matches - minMatches].writeInt(d1);
+                    outs[matches - minMatches].writeInt(d2);
+                });
+            } finally {
+                for (DataOutputStream out : outs) {
+                    if (out != null) out.close();
+                }
+            }
+
+            try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile)))) {
+                // the pairs among duplicates have similarity 1, so they come first
+                if (1.0 > threshold) {
+                    for (int g = 0; g < reader.getNumDuplicatedTexts(); g++) {
+                        long[] group = reader.getGroup(reader.getDuplicatedRepresentative(g));
+                        for (int i = 0; i < group.length; i++) {
+                            for (int j = 0; j < i; j++) numPairs += writePair(bw, group[j], group[i], 1.0);
+                        }
+                    }
+                }
+                for (int l = numLevels - 1; l >= 0; l--) {
+                    double sim = (double) (minMatches + l) / numHashes;
+                    long numRecords = levels[l].length() / RECORD_SIZE;
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(levels[l]), 1 << 16))) {
+                        for (long i = 0; i < numRecords; i++) {
+                            long id1 = reader.getExternalId(in.readInt());
+                            long id2 = reader.getExternalId(in.readInt());
+                            if (reader.getNumDuplicatedTexts() == 0) {
+                                numPairs += writePair(bw, id1, id2, sim);
+                                continue;
+                            }
+                            for (long groupId1 : reader.getGroup(id1)) {
+                                for (long groupId2 : reader.getGroup(id2)) numPairs += writePair(bw, groupId1, groupId2, sim);
+                            }
+                        }
+                    }
+                    levels[l].delete();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return numPairs;
+    }
+
+    /**
+     * Write a pair in the format of Runner.printPairs.
+     */
+    private static int writePair(BufferedWriter bw, long id1, long id2, double sim) throws IOException {
+        bw.write(id1 + "\t" + id2 + "\t" + sim);
+        bw.newLine();
+        return 1;
+    }
+
+    /**
+     * Search all bands, passing the pairs with similarity above threshold to
+     * a sink.
+     */
+    private void search(double threshold, PairSink sink) {
+        int rows = numHashes / numBands;
+
+        // Use enough partitions (a power of two) for the records of one partition to fit the budget
+        int partitionBits = 0;
+        while (partitionBits < 16 && ((long) numDocs * RECORD_SIZE >> partitionBits) > memoryBudget) partitionBits++;
+        int numPartitions = 1 << partitionBits;
+        System.out.println("Spilling " + numDocs + " records per band to " + numPartitions + " partitions");
+
+        try {
+            for (int b = 0; b < numBands; b++) {
+                File[] partitions = spillBand(b, rows, partitionBits);
+                for (File partition : partitions) {
+                    processPartition(partition, b, rows, threshold, sink);
+                    partition.delete();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write the (band key, doc id) records of a band to the partition files
+     * selected by the top bits of the band key.
+     */
+    private File[] spillBand(int b, int rows, int partitionBits) throws IOException {
+        int numPartitions = 1 << partitionBits;
+        File[] partitions = new File[numPartitions];
+        DataOutputStream[] outs = new DataOutputStream[numPartitions];
+        // keep the write buffers of all partitions within the budget as well
+        int bufferSize = (int) Math.max(512, Math.min(1 << 16, memoryBudget / numPartitions));
+        try {
+            for (int p = 0; p < numPartitions; p++) {
+                partitions[p] = File.createTempFile("band" + b + "-", ".part", spillDir);
+                partitions[p].deleteOnExit();
+                outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partitions[p]), bufferSize));
+            }
+
+            byte[] docKey = new byte[rows];
+            for (int d = 0; d < numDocs; d++) {
+                int key = getBandKey(b, d, rows, docKey);
+                int p = partitionBits == 0 ? 0 : key >>> (32 - partitionBits);
+                outs[p].writeInt(key);
+                outs[p].writeInt(d);
+            }
+        } finally {
+            for (DataOutputStream out : outs) {
+                if (out != null) out.close();
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Load the records of one partition, sort them on band key and compare
+     * all documents that share a key.
+     */
+    private void processPartition(File partition, int b, int rows, double threshold, PairSink sink) throws IOException {
+        int numRecords = (int) (partition.length() / RECORD_SIZE);
+        // band key in the high bits, doc id in the low bits, so sorting groups keys with ascending docs
+        long[] records = new long[numRecords];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(partition), 1 << 16))) {
+            for (int i = 0; i < numRecords; i++) {
+                records[i] = ((long) in.readInt() << 32) | (in.readInt() & 0xffffffffL);
+            }
+        }
+        Arrays.sort(records);
+
+        byte[] docKey = new byte[rows];
+        int start = 0;
+        while (start < numRecords) {
+            int end = start + 1;
+            while (end < numRecords && (records[end] >>> 32) == (records[start] >>> 32)) end++;
+
+            for (int i = start + 1; i < end; i++) {
+                int d = (int) records[i];
+                for (int j = start; j < i; j++) {
+                    int document = (int) records[j];
+                    // pairs that already collided in an earlier band were verified there
+                    if (collidesBefore(b, rows, document, d)) continue;
+
+                    int matches = 0;
+                    for (int h = 0; h < numHashes; h++) {
+                        if (getSignature(h, document) == getSignature(h, d)) matches++;
+                    }
+                    double sim = (double) matches / numHashes;
+
+                    if (sim > getMinSimilarity(threshold)) {
+                        // keys that differ may still have hashed to the same group in an earlier band
+                        if (sharesKeyHashBefore(b, rows, document, d, docKey)) continue;
+                        sink.accept(document, d, matches);
+                    }
+                }
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Check whether two documents have the same band key in a band before b.
+     */
+    private boolean collidesBefore(int b, int rows, int d1, int d2) {
+        for (int prev = 0; prev < b; prev++) {
+            boolean same = true;
+            for (int row = 0; row < rows && same; row++) {
+                same = (byte) getSignature(rows*prev + row, d1) == (byte) getSignature(rows*prev + row, d2);
+            }
+            if (same) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether two documents had the same band key hash, and so were
+     * compared, in a band before b.
+     */
+    private boolean sharesKeyHashBefore(int b, int rows, int d1, int d2, byte[] docKey) {
+        for (int prev = 0; prev < b; prev++) {
+            if (getBandKey(prev, d1, rows, docKey) == getBandKey(prev, d2, rows, docKey)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hash the key of a document in a band using MurmurHash.
+     */
+    private int getBandKey(int b, int d, int rows, byte[] docKey) {
+        for (int row = 0; row < rows; row++) {
+            docKey[row] = (byte) getSignature(rows*b + row, d);
+        }
+        return MurmurHash.hash32(docKey, rows, seed);
+    }
+}
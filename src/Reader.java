@@ -2,9 +2,20 @@
  * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
  * copy or distribute without permission. Written by Pieter Robberechts, 2023
  */
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Reads a set of documents and constructs shingle representations for
@@ -17,9 +28,25 @@ public abstract class Reader {
     // max number of docs to read
     protected int maxDocs;
     // maps each doc's internal id to its external id
-    public List<Long> idToDoc = new ArrayList<Long>();
+    public LongColumn idToDoc = new LongColumn();
     // number of docs read
     protected int curDoc;
+    // whether documents with identical texts are collapsed into one representative
+    protected boolean collapseDuplicates;
+    // maps the external id of each representative with duplicates to the index of its group
+    private LongIntMap groups = new LongIntMap();
+    // external id of the representative of each group
+    private LongColumn groupRepresentatives = new LongColumn();
+    // index of the last duplicate and number of documents of each group
+    private int[] groupLast = new int[16];
+    private int[] groupSizes = new int[16];
+    // external id of each duplicate, and the index of the duplicate before it in its group, or -1
+    private LongColumn duplicateIds = new LongColumn();
+    private int[] duplicatePrevious = new int[16];
+    // maps the first 64 bits of a text fingerprint to the internal id of its representative
+    private LongIntMap fingerprints = new LongIntMap();
+    // last 64 bits of the fingerprint of each representative
+    private LongColumn fingerprintTails = new LongColumn();
 
     /**
      * Construct a new document reader.
@@ -32,11 +59,20 @@ public abstract class Reader {
         this.curDoc = -1;
     }
 
+    /**
+     * Read the text of the next document and register its external id.
+     * @return the text of the next document.
+     */
+    abstract public String nextText();
+
     /**
      * Read the next document.
      * @return the shingle representation for the next document.
      */
-    abstract public Set<Integer> next();
+    public Set<Integer> next() {
+        String text = nextText();
+        return text == null ? null : this.shingler.shingle(text);
+    }
 
     /**
      * Reset this reader.
@@ -51,6 +87,40 @@ public abstract class Reader {
         return this.curDoc < this.maxDocs - 1;
     };
 
+    /**
+     * Get a stream over all documents, starting from the first one. Every
+     * document carries its internal id, external id and shingles. This
+     * default implementation reads the documents one after the other, so
+     * only readers that are splittable can really be processed in parallel.
+     * @return the stream of documents
+     */
+    public Stream<Document> documents() {
+        reset();
+        Iterator<Document> iterator = new Iterator<Document>() {
+            @Override
+            public boolean hasNext() {
+                return Reader.this.hasNext();
+            }
+
+            @Override
+            public Document next() {
+                Set<Integer> shingles = Reader.this.next();
+                int index = getNumDocs() - 1;
+                return new Document(index, getExternalId(index), shingles);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Check whether the stream of documents splits into balanced ranges
+     * that can be read in parallel.
+     * @return True if the documents can be read in parallel; otherwise False.
+     */
+    public boolean isSplittable() {
+        return false;
+    }
+
     /**
      * Read all maxDocs documents at once.
      * @return the mapping of the object id to its set representation.
@@ -72,6 +142,15 @@ public abstract class Reader {
         return this.shingler.getNumShingles();
     }
 
+    /**
+     * Describe the documents this reader reads and how they are shingled, so
+     * results derived from them can be matched to their input.
+     * @return a description of the input and shingling
+     */
+    public String getDescription() {
+        return shingler.getDescription() + " maxDocs=" + maxDocs + " collapseDuplicates=" + collapseDuplicates;
+    }
+
     /**
      * Get the number of documents that will be processed.
      * @return the number of documents.
@@ -80,10 +159,233 @@ public abstract class Reader {
         return this.maxDocs;
     }
 
+    /**
+     * Get the number of documents that were read so far. When duplicates are
+     * collapsed, this can be less than the number of documents processed.
+     * @return the number of documents.
+     */
+    public int getNumDocs() {
+        return this.idToDoc.size();
+    }
+
+    /**
+     * Map an external id to an internal id by scanning all documents, which
+     * is only meant for a few lookups.
+     * @return the internal id, or -1 if no document has the external id
+     */
+    public int getInternalId(long externalId) {
+        for (int id = 0; id < this.idToDoc.size(); id++) {
+            if (this.idToDoc.get(id) == externalId) return id;
+        }
+        return -1;
+    }
+
     /**
      * Map an internal id to an external id.
      */
     public long getExternalId(int id) {
         return this.idToDoc.get(id);
     }
+
+    /**
+     * Write the position of this reader: the external ids of the documents
+     * read so far and the duplicates of their texts.
+     * @param out the stream to write to
+     */
+    public void writePosition(DataOutputStream out) throws IOException {
+        out.writeInt(getNumDocs());
+        for (int d = 0; d < getNumDocs(); d++) out.writeLong(getExternalId(d));
+        out.writeInt(getNumDuplicatedTexts());
+        for (int g = 0; g < getNumDuplicatedTexts(); g++) {
+            long[] group = getGroup(getDuplicatedRepresentative(g));
+            out.writeLong(group[0]);
+            out.writeInt(group.length - 1);
+            for (int i = 1; i < group.length; i++) out.writeLong(group[i]);
+        }
+    }
+
+    /**
+     * Restore a position written by writePosition, as if the documents were
+     * read again. Their texts aren't, so this reader can't be read further.
+     * @param in the stream to read from
+     */
+    public void readPosition(DataInputStream in) throws IOException {
+        this.idToDoc = new LongColumn();
+        int numDocs = in.readInt();
+        for (int d = 0; d < numDocs; d++) this.idToDoc.add(in.readLong());
+        this.curDoc = numDocs - 1;
+        resetDuplicates();
+        int numGroups = in.readInt();
+        for (int g = 0; g < numGroups; g++) {
+            long representative = in.readLong();
+            int numDuplicates = in.readInt();
+            for (int i = 0; i < numDuplicates; i++) addDuplicate(representative, in.readLong());
+        }
+    }
+
+    /**
+     * Look up the representative of a text among the documents read so far,
+     * based on a 128-bit fingerprint of the text. When there is none, the
+     * text is registered with the given internal id.
+     * @param text the text of a document
+     * @param doc the internal id the document will get when it is not a duplicate
+     * @return the internal id of the representative, or -1 if the text is new
+     */
+    protected int findRepresentative(String text, int doc) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        long head = MurmurHash.hash64(bytes, bytes.length);
+        long tail = MurmurHash.hash64(bytes, bytes.length, 0x5bd1e995);
+
+        int representative = this.fingerprints.get(head);
+        if (representative == -1) {
+            this.fingerprints.put(head, doc);
+        } else if (this.fingerprintTails.get(representative) == tail) {
+            return representative;
+        }
+        // a colliding head with a different tail is a different text; it's simply never collapsed
+        this.fingerprintTails.set(doc, tail);
+        return -1;
+    }
+
+    /**
+     * Register the external id of a document that duplicates a representative.
+     */
+    protected void addDuplicate(int representative, long externalId) {
+        addDuplicate(getExternalId(representative), externalId);
+    }
+
+    /**
+     * Append a duplicate to the group of a representative, given by external ids.
+     */
+    private void addDuplicate(long representative, long externalId) {
+        int duplicate = this.duplicateIds.size();
+        if (duplicate == this.duplicatePrevious.length) {
+            this.duplicatePrevious = Arrays.copyOf(this.duplicatePrevious, 2 * duplicate);
+        }
+        this.duplicateIds.add(externalId);
+
+        int group = this.groups.get(representative);
+        if (group == -1) {
+            group = this.groupRepresentatives.size();
+            if (group == this.groupLast.length) {
+                this.groupLast = Arrays.copyOf(this.groupLast, 2 * group);
+                this.groupSizes = Arrays.copyOf(this.groupSizes, 2 * group);
+            }
+            this.groups.put(representative, group);
+            this.groupRepresentatives.add(representative);
+            this.groupLast[group] = -1;
+            this.groupSizes[group] = 1;
+        }
+        this.duplicatePrevious[duplicate] = this.groupLast[group];
+        this.groupLast[group] = duplicate;
+        this.groupSizes[group]++;
+    }
+
+    /**
+     * Forget all duplicates and fingerprints.
+     */
+    protected void resetDuplicates() {
+        this.groups = new LongIntMap();
+        this.groupRepresentatives = new LongColumn();
+        this.groupLast = new int[16];
+        this.groupSizes = new int[16];
+        this.duplicateIds = new LongColumn();
+        this.duplicatePrevious = new int[16];
+        this.fingerprints = new LongIntMap();
+        this.fingerprintTails = new LongColumn();
+    }
+
+    /**
+     * Expand pairs of representatives to the pairs of all documents they
+     * represent, and add the pairs among the duplicates of a representative,
+     * which have similarity 1.
+     * @param pairs the similar pairs of representatives
+     * @param threshold the similarity threshold
+     * @return the similar pairs of all documents
+     */
+    public Set<SimilarPair> expandDuplicates(Set<SimilarPair> pairs, double threshold) {
+        if (getNumDuplicatedTexts() == 0) return pairs;
+
+        Set<SimilarPair> expanded = new HashSet<SimilarPair>(pairs);
+        for (SimilarPair pair : pairs) {
+            long[] group1 = getGroup(pair.getId1());
+            long[] group2 = getGroup(pair.getId2());
+            for (long id1 : group1) {
+                for (long id2 : group2) {
+                    expanded.add(new SimilarPair(id1, id2, pair.getSimilarity()));
+                }
+            }
+        }
+        if (1.0 > threshold) {
+            for (int g = 0; g < getNumDuplicatedTexts(); g++) {
+                long[] group = getGroup(getDuplicatedRepresentative(g));
+                for (int i = 0; i < group.length; i++) {
+                    for (int j = 0; j < i; j++) {
+                        expanded.add(new SimilarPair(group[j], group[i], 1.0));
+                    }
+                }
+            }
+        }
+        return expanded;
+    }
+
+    /**
+     * Merge the duplicates of every representative into its cluster. As the
+     * pairs of the representatives are merged as well, the clusters of all
+     * documents are found without expanding any pair. The i-th duplicate is
+     * credited with its i pairs of similarity 1 to the documents before it in
+     * the group, so a group of n documents counts its n(n-1)/2 pairs, as it
+     * would if duplicates weren't collapsed.
+     * @param clusters the clusters of the representatives
+     * @param threshold the similarity threshold
+     */
+    public void clusterDuplicates(Clusters clusters, double threshold) {
+        if (1.0 <= threshold) return;
+        for (int g = 0; g < getNumDuplicatedTexts(); g++) {
+            long[] group = getGroup(getDuplicatedRepresentative(g));
+            for (int i = 1; i < group.length; i++) {
+                clusters.union(group[0], group[i], 1.0, i);
+            }
+        }
+    }
+
+    /**
+     * Get the number of distinct texts that were collapsed, i.e. the number
+     * of representatives with duplicates.
+     */
+    public int getNumDuplicatedTexts() {
+        return this.groupRepresentatives.size();
+    }
+
+    /**
+     * Get the external id of the representative of a duplicated text.
+     * @param group the index of the text, below getNumDuplicatedTexts()
+     */
+    public long getDuplicatedRepresentative(int group) {
+        return this.groupRepresentatives.get(group);
+    }
+
+    /**
+     * Get the number of documents a representative stands for: itself and
+     * its duplicates.
+     */
+    public int getGroupSize(long representative) {
+        int group = this.groups.get(representative);
+        return group == -1 ? 1 : this.groupSizes[group];
+    }
+
+    /**
+     * Get the external ids of a representative and its duplicates, in the
+     * order they were read.
+     */
+    public long[] getGroup(long representative) {
+        int group = this.groups.get(representative);
+        if (group == -1) return new long[] {representative};
+        long[] ids = new long[this.groupSizes[group]];
+        ids[0] = representative;
+        // walk the chain back from the last duplicate
+        int i = ids.length;
+        for (int d = this.groupLast[group]; d != -1; d = this.duplicatePrevious[d]) ids[--i] = this.duplicateIds.get(d);
+        return ids;
+    }
 }
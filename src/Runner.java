@@ -3,6 +3,7 @@
  * copy or distribute without permission. Written by Pieter Robberechts, 2023
  */
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /**
@@ -13,6 +14,40 @@ import java.io.*;
  *  java Runner -threshold 0.5 -method bf -maxTweets 100 -dataFile data -shingleLength 5
  * Example command to run with LSH similarity search:
  *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20
+ * Example command to run with multi-probe LSH, probing 2 extra buckets per band:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 40 -numBands 8 -numProbes 2
+ * Example command to run LSH with reading, shingling and hashing pipelined over 4 threads:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -numThreads 4
+ * Example command to run LSH on a block gzipped (bgzip) file, decompressed by 4 threads:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data.gz -shingleLength 5 -numHashes 100 -numBands 20 -numThreads 4
+ * Example command to run LSH on 2-bit packed signatures:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 256 -numBands 16 -bBits 2
+ * Example command to run LSH on unique tweet texts only, expanding the pairs to all duplicates afterwards:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -collapseDuplicates true
+ * Example command to run LSH with MinHash functions derived from one MurmurHash3 per shingle:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -hashFamily murmur
+ * Example command to run with an LSH Forest of 8 trees, keyed on up to 16 hash values each:
+ *  java Runner -threshold 0.5 -method forest -maxTweets 100 -dataFile data -shingleLength 5 -numTrees 8 -maxDepth 16
+ * Example command to query one LSH Forest at several thresholds, writing output-0.5.tsv, output-0.7.tsv and output-0.9.tsv:
+ *  java Runner -method forest -maxTweets 100 -dataFile data -shingleLength 5 -numTrees 8 -maxDepth 16 -forestThresholds 0.5,0.7,0.9 -outputFile output.tsv
+ * Example command to query an LSH Forest for the 10 tweets most similar to each of two tweets:
+ *  java Runner -method forest -maxTweets 100 -dataFile data -shingleLength 5 -numTrees 8 -maxDepth 16 -topK 10 -queryIds 1234,5678
+ * Example command to run LSH over a sliding window, only pairing tweets posted within 3 hours of each other:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -windowSeconds 10800
+ * Example command to sweep over LSH configurations, sharing one signature matrix of 84 hashes:
+ *  java Runner -method sweep -maxTweets 100 -dataFile data -shingleLength 5 -sweepBands 4x21,6x14,12x7 -sweepThresholds 0.5,0.7,0.9 -outputFile sweep.tsv
+ * Example command to run LSH and write the clusters of similar tweets, with their minimum and average similarity, instead of the pairs:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -outputClusters true -clusterStats true
+ * Example command to estimate the candidates, pairs, runtime and memory of an LSH run from a sample of 10000 tweets:
+ *  java Runner -threshold 0.5 -method estimate -maxTweets 100000 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -sampleSize 10000 -outputFile estimate.tsv
+ * Example command to run LSH sharded over 4 worker processes, which share the signatures and pairs through /tmp:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -numWorkers 4 -spillDir /tmp
+ * Example command to run LSH with checkpoints after the signatures and after every band, resuming an earlier run that was killed:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -checkpointDir checkpoints -resume true
+ * Example command to run LSH and only keep the 1000 most similar pairs:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -topN 1000
+ * Example command to run out-of-core LSH within a memory budget of 256MB:
+ *  java Runner -threshold 0.5 -method lsh -maxTweets 100 -dataFile data -shingleLength 5 -numHashes 100 -numBands 20 -memoryBudget 256 -spillDir /tmp
  */
 public class Runner {
 
@@ -25,6 +60,30 @@ public class Runner {
         int numHashes = -1;
         int numBands = -1;
         int numBuckets = 2000;
+        int numProbes = 0;
+        int numThreads = 1;
+        int numWorkers = 0;
+        String checkpointDir = "";
+        boolean resume = false;
+        int topN = 0;
+        int bBits = 0;
+        boolean collapseDuplicates = false;
+        boolean outputClusters = false;
+        boolean clusterStats = false;
+        String hashFamily = "table";
+        String sweepBands = "";
+        long windowIds = -1;
+        long windowSeconds = -1;
+        int numTrees = -1;
+        int sampleSize = 10000;
+        int maxDepth = -1;
+        double forestRecall = 0.95;
+        String forestThresholds = "";
+        int topK = 0;
+        String queryIds = "";
+        String sweepThresholds = "";
+        long memoryBudget = -1;
+        String spillDir = System.getProperty("java.io.tmpdir");
         int seed = 1234;
         int maxTweets = -1;
         int shingleLength = -1;
@@ -34,8 +93,8 @@ public class Runner {
         while (i < args.length && args[i].startsWith("-")) {
             String arg = args[i];
             if (arg.equals("-method")) {
-                if (!args[i+1].equals("bf") && !args[i+1].equals("lsh")){
-                    System.err.println("The search method should either be brute force (bf) or minhash and locality sensitive hashing (lsh)");
+                if (!args[i+1].equals("bf") && !args[i+1].equals("lsh") && !args[i+1].equals("sweep") && !args[i+1].equals("forest") && !args[i+1].equals("estimate")){
+                    System.err.println("The search method should either be brute force (bf), minhash and locality sensitive hashing (lsh), a sweep over lsh configurations (sweep), an lsh forest (forest) or an estimate of an lsh run (estimate)");
                 }
                 method = args[i+1];
             } else if(arg.equals("-numHashes")) {
@@ -44,6 +103,54 @@ public class Runner {
                 numBands = Integer.parseInt(args[i+1]);
             } else if(arg.equals("-numBuckets")) {
                 numBuckets = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-numProbes")) {
+                numProbes = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-bBits")) {
+                bBits = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-collapseDuplicates")) {
+                collapseDuplicates = Boolean.parseBoolean(args[i+1]);
+            } else if(arg.equals("-outputClusters")) {
+                outputClusters = Boolean.parseBoolean(args[i+1]);
+            } else if(arg.equals("-clusterStats")) {
+                clusterStats = Boolean.parseBoolean(args[i+1]);
+            } else if(arg.equals("-windowIds")) {
+                windowIds = Long.parseLong(args[i+1]);
+            } else if(arg.equals("-windowSeconds")) {
+                windowSeconds = Long.parseLong(args[i+1]);
+            } else if(arg.equals("-sampleSize")) {
+                sampleSize = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-numTrees")) {
+                numTrees = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-maxDepth")) {
+                maxDepth = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-forestRecall")) {
+                forestRecall = Double.parseDouble(args[i+1]);
+            } else if(arg.equals("-forestThresholds")) {
+                forestThresholds = args[i+1];
+            } else if(arg.equals("-topK")) {
+                topK = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-queryIds")) {
+                queryIds = args[i+1];
+            } else if(arg.equals("-sweepBands")) {
+                sweepBands = args[i+1];
+            } else if(arg.equals("-sweepThresholds")) {
+                sweepThresholds = args[i+1];
+            } else if(arg.equals("-hashFamily")) {
+                hashFamily = args[i+1];
+            } else if(arg.equals("-numThreads")) {
+                numThreads = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-numWorkers")) {
+                numWorkers = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-checkpointDir")) {
+                checkpointDir = args[i+1];
+            } else if(arg.equals("-resume")) {
+                resume = Boolean.parseBoolean(args[i+1]);
+            } else if(arg.equals("-topN")) {
+                topN = Integer.parseInt(args[i+1]);
+            } else if(arg.equals("-memoryBudget")) {
+                memoryBudget = Long.parseLong(args[i+1]) * 1024 * 1024;
+            } else if(arg.equals("-spillDir")) {
+                spillDir = args[i+1];
             } else if(arg.equals("-numShingles")) {
                 numShingles = Integer.parseInt(args[i+1]);
             } else if(arg.equals("-seed")) {
@@ -63,8 +170,43 @@ public class Runner {
             i += 2;
         }
 
+        if (resume && checkpointDir.isEmpty()) {
+            throw new Error("-checkpointDir is a mandatory argument to resume a run");
+        }
+        if (!checkpointDir.isEmpty() && (!method.equals("lsh") || windowIds > 0 || windowSeconds > 0 || memoryBudget > 0 || numWorkers > 0)) {
+            throw new Error("-checkpointDir is only supported by the lsh method, without -windowIds, -windowSeconds, -memoryBudget or -numWorkers");
+        }
+        if ((topK > 0 || !forestThresholds.isEmpty())
+                && (!method.equals("forest") || (topK > 0 && !forestThresholds.isEmpty()) || topN > 0 || outputClusters)) {
+            throw new Error("Either -topK or -forestThresholds queries the forest method, without -topN or -outputClusters");
+        }
+        if (topK > 0 && queryIds.isEmpty()) {
+            throw new Error("-queryIds is a mandatory argument for a top-k query");
+        }
+
         Shingler shingler = new Shingler(shingleLength, numShingles, seed);
-        Reader reader = new TwitterReader(maxTweets, shingler, inputFile);
+        Reader reader = new TwitterReader(maxTweets, shingler, inputFile, collapseDuplicates, numThreads);
+
+        if (method.equals("sweep")) {
+            if (sweepBands.isEmpty()) {
+                throw new Error("-sweepBands is a mandatory argument for the sweep method");
+            }
+            sweep(reader, sweepBands, sweepThresholds.isEmpty() ? Float.toString(threshold) : sweepThresholds,
+                    numBuckets, numProbes, bBits, hashFamily, numThreads, seed, outputFile);
+            return;
+        }
+
+        if (method.equals("estimate")) {
+            if (numHashes == -1 || numBands == -1) {
+                throw new Error("Both -numHashes and -numBands are mandatory arguments for the estimate method");
+            }
+            estimate(reader, sampleSize, threshold, numHashes, numBands, numBuckets, numProbes, hashFamily, seed, outputFile);
+            return;
+        }
+
+        if (topN > 0 && (collapseDuplicates || outputClusters || !checkpointDir.isEmpty())) {
+            throw new Error("-topN can't be combined with -collapseDuplicates, -outputClusters or -checkpointDir");
+        }
 
         SimilaritySearcher searcher = null;
         if (method.equals("bf")) {
@@ -73,14 +215,88 @@ public class Runner {
             if (numHashes == -1 || numBands == -1) {
                 throw new Error("Both -numHashes and -numBands are mandatory arguments for the LSH method");
             }
-            searcher = new LSH(reader, numHashes, numBands, numBuckets, seed);
+            if (windowIds > 0 || windowSeconds > 0) {
+                if (numProbes > 0 || bBits > 0 || numThreads > 1) {
+                    throw new Error("Windowed LSH doesn't support -numProbes, -bBits or -numThreads");
+                }
+                // the window only sees the first copy of a text, so the pairs of its later copies can't be restricted to the window
+                if (collapseDuplicates) {
+                    throw new Error("Windowed LSH can't be combined with -collapseDuplicates");
+                }
+                if (windowIds > 0) {
+                    searcher = new WindowedLSH(reader, numHashes, numBands, numBuckets, windowIds, false, hashFamily, seed);
+                } else {
+                    searcher = new WindowedLSH(reader, numHashes, numBands, numBuckets, windowSeconds * 1000, true, hashFamily, seed);
+                }
+            } else if (memoryBudget > 0) {
+                if (numProbes > 0 || bBits > 0 || numThreads > 1) {
+                    throw new Error("Out-of-core LSH doesn't support -numProbes, -bBits or -numThreads");
+                }
+                searcher = new OutOfCoreLSH(reader, numHashes, numBands, memoryBudget, new File(spillDir), hashFamily, seed);
+            } else if (numWorkers > 0) {
+                if (numProbes > 0 || bBits > 0) {
+                    throw new Error("Sharded LSH doesn't support -numProbes or -bBits");
+                }
+                searcher = new ShardedLSH(reader, numHashes, numBands, numWorkers, new File(spillDir), hashFamily, numThreads, seed);
+            } else {
+                searcher = new LSH(reader, numHashes, numBands, numBuckets, numProbes, bBits, hashFamily, numThreads, seed,
+                        checkpointDir.isEmpty() ? null : new File(checkpointDir), resume);
+            }
+        } else if(method.equals("forest")) {
+            if (numTrees == -1 || maxDepth == -1) {
+                throw new Error("Both -numTrees and -maxDepth are mandatory arguments for the forest method");
+            }
+            LSHForest forest = new LSHForest(reader, numTrees, maxDepth, hashFamily, numThreads, seed);
+            forest.setTargetRecall(forestRecall);
+            if (topK > 0) {
+                queryForest(forest, reader, queryIds, topK, outputFile);
+                return;
+            }
+            if (!forestThresholds.isEmpty()) {
+                searchForest(forest, reader, forestThresholds, collapseDuplicates, outputFile);
+                return;
+            }
+            searcher = forest;
         }
 
         //Set<SimilarPair> bfItems = getPairs(outputFile);
 
         long startTime = System.currentTimeMillis();
         System.out.println("Searching items more similar than " + threshold + " ... ");
+        if (outputClusters) {
+            Clusters clusters = new Clusters();
+            searcher.setClusters(clusters);
+            searcher.getSimilarPairsAboveThreshold(threshold);
+            if (collapseDuplicates) {
+                System.out.println("Clustering " + reader.getNumDocs() + " unique tweets with their " + reader.getNumDuplicatedTexts() + " duplicated texts");
+                reader.clusterDuplicates(clusters, threshold);
+            }
+            System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+            System.out.println("--------------");
+            printClusters(clusters, clusterStats, outputFile);
+            return;
+        }
+        if (topN > 0) {
+            List<SimilarPair> topItems = searcher.getMostSimilarPairs(topN, threshold);
+            System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+            System.out.println("--------------");
+            printPairs(topItems, outputFile);
+            return;
+        }
+        if (searcher instanceof OutOfCoreLSH) {
+            // spill the pairs rather than collecting them, so the result stays within the memory budget as well
+            long numPairs = ((OutOfCoreLSH) searcher).writeSimilarPairs(threshold, outputFile);
+            System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+            System.out.println("--------------");
+            System.out.println("Found " + numPairs + " similar pairs, saved to '" + outputFile + "'");
+            System.out.println("--------------");
+            return;
+        }
         Set<SimilarPair> similarItems = searcher.getSimilarPairsAboveThreshold(threshold);
+        if (collapseDuplicates) {
+            System.out.println("Expanding pairs of " + reader.getNumDocs() + " unique tweets to their " + reader.getNumDuplicatedTexts() + " duplicated texts");
+            similarItems = reader.expandDuplicates(similarItems, threshold);
+        }
         System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
         System.out.println("--------------");
 
@@ -107,6 +323,200 @@ public class Runner {
         printPairs(similarItems, outputFile);
     }
 
+    /**
+     * Evaluates LSH configurations on one signature matrix. The signatures
+     * are constructed once with as many hashes as the largest configuration
+     * needs, after which every combination of band/row split and threshold is
+     * searched, in parallel as far as memory allows. The runtime, number of
+     * candidate pairs and number of similar pairs of each configuration are
+     * printed and saved to the output file.
+     * @param reader the document reader
+     * @param bandSplits comma separated band/row splits, e.g. "4x21,6x14"
+     * @param thresholds comma separated similarity thresholds
+     * @param numBuckets number of buckets to use during locality sensitive hashing
+     * @param numProbes number of neighbouring buckets to probe per band
+     * @param bBits number of lowest bits to keep per hash value, or 0 to keep the full signatures
+     * @param hashFamily family of the MinHash functions, "table" or "murmur"
+     * @param numThreads number of threads shingling and hashing the documents
+     * @param seed seed for generating random numbers
+     * @param outputFile The file to write the report to
+     */
+    public static void sweep(Reader reader, String bandSplits, String thresholds, int numBuckets, int numProbes,
+                             int bBits, String hashFamily, int numThreads, int seed, String outputFile) {
+        String[] splits = bandSplits.split(",");
+        int[] bands = new int[splits.length];
+        int[] rows = new int[splits.length];
+        int maxHashes = 0;
+        for (int s = 0; s < splits.length; s++) {
+            String[] parts = splits[s].trim().split("x");
+            bands[s] = Integer.parseInt(parts[0]);
+            rows[s] = Integer.parseInt(parts[1]);
+            maxHashes = Math.max(maxHashes, bands[s] * rows[s]);
+        }
+        String[] thresholdParts = thresholds.split(",");
+        double[] sweepThresholds = new double[thresholdParts.length];
+        for (int t = 0; t < thresholdParts.length; t++) sweepThresholds[t] = Double.parseDouble(thresholdParts[t].trim());
+
+        long startTime = System.currentTimeMillis();
+        LSH base = new LSH(reader, maxHashes, 1, numBuckets, numProbes, bBits, hashFamily, numThreads, seed);
+        System.out.println("Signatures with " + maxHashes + " hashes took " + (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+
+        // every configuration needs its own buckets and result set, so only run as many at once as fit in memory
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        // the table of a result set holds a 4-byte reference per slot, rounded up to a power of two slots
+        long resultTableBytes = 4L * Integer.highestOneBit(LSH.RESULT_CAPACITY - 1) * 2;
+        long memoryPerConfig = (long) reader.getNumDocs() * 64 + (long) numBuckets * 48 + resultTableBytes;
+        int numConfigs = splits.length * sweepThresholds.length;
+        int parallelism = (int) Math.max(1, Math.min(Math.min(runtime.availableProcessors(), numConfigs), freeMemory / memoryPerConfig));
+        System.out.println("Evaluating " + numConfigs + " configurations, " + parallelism + " at a time");
+        System.out.println("bands\trows\tthreshold\tseconds\tcandidates\tpairs");
+
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        List<Future<String>> reports = new ArrayList<Future<String>>();
+        for (int s = 0; s < splits.length; s++) {
+            for (double sweepThreshold : sweepThresholds) {
+                LSH lsh = new LSH(base, bands[s], rows[s]);
+                reports.add(pool.submit(() -> {
+                    long configStart = System.currentTimeMillis();
+                    Set<SimilarPair> pairs = reader.expandDuplicates(lsh.getSimilarPairsAboveThreshold(sweepThreshold), sweepThreshold);
+                    String report = lsh.numBands + "\t" + (lsh.getNumHashes() / lsh.numBands) + "\t" + sweepThreshold + "\t"
+                            + (System.currentTimeMillis() - configStart)/1000.0 + "\t" + lsh.getNumCandidates() + "\t" + pairs.size();
+                    System.out.println(report);
+                    return report;
+                }));
+            }
+        }
+        pool.shutdown();
+
+        try {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputFile))));
+            bw.write("bands\trows\tthreshold\tseconds\tcandidates\tpairs");
+            bw.newLine();
+            for (Future<String> report : reports) {
+                bw.write(report.get());
+                bw.newLine();
+            }
+            bw.close();
+            System.out.println("Sweep took " + (System.currentTimeMillis() - startTime)/1000.0 + " seconds, saved to '" + outputFile + "'");
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Searches one LSH Forest at several thresholds. The pairs of every
+     * threshold are saved to the output file with the threshold appended to
+     * its name, e.g. output-0.5.tsv for output.tsv.
+     * @param forest the LSH Forest to search
+     * @param reader the document reader
+     * @param thresholds comma separated similarity thresholds
+     * @param collapseDuplicates whether the reader collapsed duplicates, whose pairs are then expanded
+     * @param outputFile The file name to derive the output files from
+     */
+    public static void searchForest(LSHForest forest, Reader reader, String thresholds, boolean collapseDuplicates, String outputFile) {
+        for (String part : thresholds.split(",")) {
+            double threshold = Double.parseDouble(part.trim());
+            long startTime = System.currentTimeMillis();
+            System.out.println("Searching items more similar than " + threshold + " ... ");
+            Set<SimilarPair> similarItems = forest.getSimilarPairsAboveThreshold(threshold);
+            if (collapseDuplicates) {
+                similarItems = reader.expandDuplicates(similarItems, threshold);
+            }
+            System.out.println("done! Took " +  (System.currentTimeMillis() - startTime)/1000.0 + " seconds.");
+            int dot = outputFile.lastIndexOf('.');
+            String thresholdFile = dot > 0 ? outputFile.substring(0, dot) + "-" + threshold + outputFile.substring(dot) : outputFile + "-" + threshold;
+            printPairs(similarItems, thresholdFile);
+        }
+    }
+
+    /**
+     * Queries an LSH Forest for the tweets most similar to each of a list of
+     * tweets. Every line of the output file holds a queried id, the id of one
+     * of its most similar tweets and their similarity, most similar first.
+     * @param forest the LSH Forest to query
+     * @param reader the document reader
+     * @param queryIds comma separated ids of the tweets to query
+     * @param k number of most similar tweets to find per query
+     * @param outputFile The file to write the output to
+     */
+    public static void queryForest(LSHForest forest, Reader reader, String queryIds, int k, String outputFile) {
+        try {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputFile))));
+            for (String part : queryIds.split(",")) {
+                long queryId = Long.parseLong(part.trim());
+                int doc = reader.getInternalId(queryId);
+                if (doc == -1) {
+                    throw new Error("Tweet " + queryId + " isn't among the documents that were read");
+                }
+                for (SimilarPair p : forest.getMostSimilar(doc, k)) {
+                    bw.write(p.getId1() + "\t" + p.getId2() + "\t" + p.getSimilarity());
+                    bw.newLine();
+                }
+            }
+            bw.close();
+            System.out.println("Found the " + k + " most similar tweets of every query, saved to '" + outputFile + "'");
+            System.out.println("--------------");
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prints clusters, one line per cluster.
+     * @param clusters The clusters of similar objects
+     * @param withSimilarity Whether to print the minimum and average similarity of every cluster
+     * @param outputFile The file to write the output to
+     */
+    public static void printClusters(Clusters clusters, boolean withSimilarity, String outputFile){
+        try {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputFile))));
+            clusters.write(bw, withSimilarity);
+            bw.close();
+            System.out.println("Found " + clusters.getNumClusters() + " clusters of " + clusters.getNumMembers() + " similar items, saved to '" + outputFile + "'");
+            System.out.println("--------------");
+        }catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Estimates the number of candidate and similar pairs of an LSH run, and
+     * its runtime and memory, from a sample of the documents. The estimates
+     * and their 95% confidence intervals are printed and saved to the output
+     * file.
+     * @param reader the document reader
+     * @param sampleSize number of documents to sample
+     * @param threshold the similarity threshold
+     * @param numHashes number of hashes to use to construct the signature matrix
+     * @param numBands number of bands to use during locality sensitive hashing
+     * @param numBuckets number of buckets to use during locality sensitive hashing
+     * @param numProbes number of neighbouring buckets to probe per band
+     * @param hashFamily family of the MinHash functions, "table" or "murmur"
+     * @param seed seed for generating random numbers
+     * @param outputFile The file to write the report to
+     */
+    public static void estimate(Reader reader, int sampleSize, double threshold, int numHashes, int numBands, int numBuckets,
+                                int numProbes, String hashFamily, int seed, String outputFile) {
+        long startTime = System.currentTimeMillis();
+        LSHEstimator estimator = new LSHEstimator(reader, sampleSize, numHashes, numBands, numBuckets, numProbes, hashFamily, seed);
+        List<String> report = estimator.estimate(threshold);
+
+        try {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputFile))));
+            for (String row : report) {
+                System.out.println(row);
+                bw.write(row);
+                bw.newLine();
+            }
+            bw.close();
+            System.out.println("Estimate took " + (System.currentTimeMillis() - startTime)/1000.0 + " seconds, saved to '" + outputFile + "'");
+        } catch(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     public static Set<SimilarPair> getPairs(String outputFile){
         Set<SimilarPair> set = new HashSet<>();
         try { 
@@ -129,10 +539,10 @@ public class Runner {
 
     /**
      * Prints pairs and their similarity.
-     * @param similarItems A set of similar pairs
+     * @param similarItems A collection of similar pairs
      * @param outputFile The file to write the output to
      */
-    public static void printPairs(Set<SimilarPair> similarItems, String outputFile){
+    public static void printPairs(Collection<SimilarPair> similarItems, String outputFile){
         try {
             File fout = new File(outputFile);
             FileOutputStream fos = new FileOutputStream(fout);
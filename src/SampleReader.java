@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads a uniform random sample of the documents of another reader. The
+ * sample is drawn with reservoir sampling in a single pass over the texts of
+ * the other reader, without shingling them, and is kept in memory.
+ */
+public class SampleReader extends Reader {
+
+    // texts and external ids of the sampled documents, in order of the source
+    private List<String> texts = new ArrayList<String>();
+    private List<Long> ids = new ArrayList<Long>();
+    // number of documents the sample was drawn from
+    private int numSourceDocs;
+
+    /**
+     * Construct a reader for a sample of the documents of another reader.
+     * @param source the reader to sample from, read from its first document on.
+     * @param sampleSize maximal number of documents in the sample.
+     * @param seed the seed of the sample.
+     */
+    public SampleReader(Reader source, int sampleSize, int seed) {
+        super(sampleSize, source.shingler);
+
+        // Algorithm R: document i replaces a random sampled one with probability sampleSize / (i + 1)
+        Random rn = new Random(seed);
+        int[] positions = new int[sampleSize];
+        String[] sampledTexts = new String[sampleSize];
+        long[] sampledIds = new long[sampleSize];
+        source.reset();
+        while (source.hasNext()) {
+            String text = source.nextText();
+            if (text == null) break;
+            int i = source.getNumDocs() - 1;
+            int slot = i < sampleSize ? i : rn.nextInt(i + 1);
+            if (slot < sampleSize) {
+                positions[slot] = i;
+                sampledTexts[slot] = text;
+                sampledIds[slot] = source.getExternalId(i);
+            }
+        }
+        this.numSourceDocs = source.getNumDocs();
+        int numSampled = Math.min(sampleSize, numSourceDocs);
+
+        // keep the order of the source, e.g. for readers that expect ids in stream order
+        Integer[] order = new Integer[numSampled];
+        for (int s = 0; s < numSampled; s++) order[s] = s;
+        Arrays.sort(order, (s1, s2) -> Integer.compare(positions[s1], positions[s2]));
+        for (int s : order) {
+            texts.add(sampledTexts[s]);
+            ids.add(sampledIds[s]);
+        }
+        this.maxDocs = numSampled;
+    }
+
+    /**
+     * Get the number of documents the sample was drawn from.
+     */
+    public int getNumSourceDocs() {
+        return numSourceDocs;
+    }
+
+    @Override
+    public String nextText() {
+        if (!hasNext()) {
+            return null;
+        }
+        this.curDoc++;
+        this.idToDoc.add(ids.get(curDoc));
+        return texts.get(curDoc);
+    }
+
+    @Override
+    public void reset() {
+        this.curDoc = -1;
+        this.idToDoc = new LongColumn();
+    }
+}
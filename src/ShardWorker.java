@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Worker process of sharded LSH. The work of a search is split into tasks,
+ * one per band and range of band key hashes, and worker w of numWorkers
+ * runs the tasks t with t % numWorkers == w. For a task, it buckets the
+ * documents whose key falls in the range by sorting their (key, doc)
+ * records, and verifies the documents that share a key on their signatures,
+ * which it reads from the memory-mapped signature file that the coordinator
+ * wrote. The similar pairs are written to a file of (doc, doc, similarity)
+ * records with internal ids, for the coordinator to merge. Since a worker
+ * only needs the signature file, workers can run on any host that shares
+ * it.
+ *
+ * Example command, as started by ShardedLSH:
+ *  java ShardWorker signatures.bin 100000 100 20 1234 0.5 0 4 pairs-0.bin
+ */
+public class ShardWorker {
+
+    int numDocs;
+    int numHashes;
+    int numBands;
+    int seed;
+    // doc-major signatures, split over segments because a mapping can't exceed 2GB
+    ShortBuffer[] signatureSegments;
+    int docsPerSegment;
+    SignatureKernel kernel = SignatureKernel.create();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 9) {
+            throw new Error("Usage: ShardWorker signatureFile numDocs numHashes numBands seed threshold worker numWorkers pairFile");
+        }
+        File signatureFile = new File(args[0]);
+        int numDocs = Integer.parseInt(args[1]);
+        int numHashes = Integer.parseInt(args[2]);
+        int numBands = Integer.parseInt(args[3]);
+        int seed = Integer.parseInt(args[4]);
+        double threshold = Double.parseDouble(args[5]);
+        int worker = Integer.parseInt(args[6]);
+        int numWorkers = Integer.parseInt(args[7]);
+        File pairFile = new File(args[8]);
+
+        long startTime = System.currentTimeMillis();
+        ShardWorker shardWorker = new ShardWorker(signatureFile, numDocs, numHashes, numBands, seed);
+        long numPairs = shardWorker.run(threshold, worker, numWorkers, pairFile);
+        System.out.println("Worker " + worker + " found " + numPairs + " similar pairs in "
+                + (System.currentTimeMillis() - startTime)/1000.0 + " seconds");
+    }
+
+    /**
+     * Construct a worker on a signature file.
+     *
+     * @param signatureFile file with the doc-major signatures, as big-endian shorts
+     * @param numDocs       number of documents
+     * @param numHashes     number of hash values in a signature
+     * @param numBands      number of bands to use during locality sensitive hashing
+     * @param seed          seed of the band key hashes
+     */
+    public ShardWorker(File signatureFile, int numDocs, int numHashes, int numBands, int seed) throws IOException {
+        this.numDocs = numDocs;
+        this.numHashes = numHashes;
+        this.numBands = numBands;
+        this.seed = seed;
+
+        docsPerSegment = Integer.MAX_VALUE / (2 * numHashes);
+        int numSegments = (numDocs + docsPerSegment - 1) / docsPerSegment;
+        signatureSegments = new ShortBuffer[numSegments];
+        try (FileChannel channel = new RandomAccessFile(signatureFile, "r").getChannel()) {
+            for (int s = 0; s < numSegments; s++) {
+                long start = (long) s * docsPerSegment * numHashes * 2;
+                long size = Math.min((long) docsPerSegment * numHashes * 2, channel.size() - start);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                signatureSegments[s] = segment.asShortBuffer();
+            }
+        }
+    }
+
+    /**
+     * Run the tasks of a worker.
+     *
+     * @param threshold  the similarity threshold
+     * @param worker     index of this worker
+     * @param numWorkers number of workers, which is also the number of key ranges per band
+     * @param pairFile   file to write the similar pairs to
+     * @return the number of similar pairs
+     */
+    public long run(double threshold, int worker, int numWorkers, File pairFile) throws IOException {
+        int rows = numHashes / numBands;
+        int minMatches = SignatureKernel.getMinMatches(threshold, numHashes);
+        long numPairs = 0;
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(pairFile), 1 << 16))) {
+            for (int task = worker; task < numBands * numWorkers; task += numWorkers) {
+                numPairs += runTask(task / numWorkers, task % numWorkers, numWorkers, rows, threshold, minMatches, out);
+            }
+        }
+        return numPairs;
+    }
+
+    /**
+     * Bucket and verify the documents of one band whose key falls in a range.
+     */
+    private long runTask(int b, int range, int numRanges, int rows, double threshold, int minMatches, DataOutputStream out) throws IOException {
+        byte[] docKey = new byte[rows];
+        // band key in the high bits, doc id in the low bits, so sorting groups keys with ascending docs
+        long[] records = new long[Math.max(16, numDocs / numRanges)];
+        int numRecords = 0;
+        for (int d = 0; d < numDocs; d++) {
+            int key = getBandKey(b, d, rows, docKey);
+            if (getRange(key, numRanges) != range) continue;
+            if (numRecords == records.length) records = Arrays.copyOf(records, 2 * records.length);
+            records[numRecords++] = ((long) key << 32) | d;
+        }
+        Arrays.sort(records, 0, numRecords);
+
+        long numPairs = 0;
+        short[] sig1 = new short[numHashes];
+        short[] sig2 = new short[numHashes];
+        int start = 0;
+        while (start < numRecords) {
+            int end = start + 1;
+            while (end < numRecords && (records[end] >>> 32) == (records[start] >>> 32)) end++;
+
+            for (int i = start + 1; i < end; i++) {
+                int d = (int) records[i];
+                getSignature(d, sig2);
+                for (int j = start; j < i; j++) {
+                    int document = (int) records[j];
+                    getSignature(document, sig1);
+                    // pairs that already collided in an earlier band were verified there
+                    if (collidesBefore(b, rows, sig1, sig2)) continue;
+
+                    double sim = (double) kernel.countMatches(sig1, sig2, numHashes, minMatches) / numHashes;
+                    if (sim > threshold) {
+                        out.writeInt(document);
+                        out.writeInt(d);
+                        out.writeDouble(sim);
+                        numPairs++;
+                    }
+                }
+            }
+            start = end;
+        }
+        return numPairs;
+    }
+
+    /**
+     * Get the range of band key hashes a key falls in.
+     */
+    static int getRange(int key, int numRanges) {
+        return (int) (((key & 0xffffffffL) * numRanges) >>> 32);
+    }
+
+    /**
+     * Check whether two signatures have the same band key in a band before b.
+     */
+    private boolean collidesBefore(int b, int rows, short[] sig1, short[] sig2) {
+        for (int prev = 0; prev < b; prev++) {
+            boolean same = true;
+            for (int row = 0; row < rows && same; row++) {
+                same = (byte) sig1[rows*prev + row] == (byte) sig2[rows*prev + row];
+            }
+            if (same) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hash the key of a document in a band using MurmurHash.
+     */
+    private int getBandKey(int b, int d, int rows, byte[] docKey) {
+        ShortBuffer segment = signatureSegments[d / docsPerSegment];
+        int offset = (d % docsPerSegment) * numHashes + rows*b;
+        for (int row = 0; row < rows; row++) {
+            docKey[row] = (byte) segment.get(offset + row);
+        }
+        return MurmurHash.hash32(docKey, rows, seed);
+    }
+
+    /**
+     * Copy the signature of a document.
+     */
+    private void getSignature(int d, short[] signature) {
+        signatureSegments[d / docsPerSegment].get((d % docsPerSegment) * numHashes, signature, 0, numHashes);
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+import java.util.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Coordinator of a sharded implementation of minhash and locality sensitive
+ * hashing (LSH), which spreads the banding and verification over several
+ * worker processes.
+ * <p>
+ * The coordinator constructs the signatures and writes them to a file in a
+ * shared directory. The search is split into one task per band and range of
+ * band key hashes, which are divided over numWorkers ShardWorker processes,
+ * so no worker holds more than its share of the buckets. Every worker maps
+ * the signature file, runs its tasks and writes its similar pairs to a file
+ * of its own, after which the coordinator merges and deduplicates the pairs
+ * and maps them to external ids. Workers are started on the local host, but
+ * as they only communicate through files, they can as well be started by
+ * hand on hosts that share the directory.
+ */
+public class ShardedLSH extends SimilaritySearcher
+{
+
+    int numHashes;
+    int numBands;
+    int numShingles;
+    int numDocs;
+    int numWorkers;
+    int seed;
+    File workDir;
+    File signatureFile;
+
+    /**
+     * Construct a sharded LSH similarity searcher.
+     *
+     * @param reader     the document reader
+     * @param numHashes  number of hashes to use to construct the signature matrix
+     * @param numBands   number of bands to use during locality sensitive hashing
+     * @param numWorkers number of worker processes
+     * @param workDir    directory shared with the workers, for the signatures and pairs
+     * @param hashFamily family of the MinHash functions, "table" or "murmur"
+     * @param numThreads number of threads shingling and hashing the documents
+     * @param seed       should be used to generate any random numbers needed
+     */
+    public ShardedLSH(Reader reader, int numHashes, int numBands, int numWorkers, File workDir, String hashFamily, int numThreads, int seed) {
+        super(reader);
+
+        this.numHashes = numHashes;
+        this.numBands = numBands;
+        this.numShingles = reader.getNumShingles();
+        this.numWorkers = numWorkers;
+        this.workDir = workDir;
+        this.seed = seed;
+        short[][] hashValues = Minhash.constructHashTableShort(hashFamily, numHashes, numShingles, seed);
+        SignatureMatrix signatureMatrix = SignaturePipeline.constructSignatureMatrixShort(reader, hashValues, null, numThreads);
+        this.numDocs = reader.getNumDocs();
+        try {
+            writeSignatures(signatureMatrix);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write the signatures of all documents to the shared directory.
+     */
+    private void writeSignatures(SignatureMatrix signatureMatrix) throws IOException {
+        signatureFile = File.createTempFile("signatures", ".bin", workDir);
+        signatureFile.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(signatureFile), 1 << 16))) {
+            for (int d = 0; d < numDocs; d++) {
+                for (int h = 0; h < numHashes; h++) out.writeShort(signatureMatrix.get(d, h));
+            }
+        }
+    }
+
+    /**
+     * Returns the pairs with similarity above threshold (approximate).
+     */
+    @Override
+    public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
+        Set<SimilarPair> similarPairsAboveThreshold = new HashSet<SimilarPair>();
+        System.out.println("Searching " + numBands + " bands with " + numWorkers + " workers");
+
+        List<Process> workers = new ArrayList<Process>();
+        File[] pairFiles = new File[numWorkers];
+        try {
+            for (int w = 0; w < numWorkers; w++) {
+                pairFiles[w] = File.createTempFile("pairs-" + w + "-", ".bin", workDir);
+                pairFiles[w].deleteOnExit();
+                workers.add(startWorker(w, threshold, pairFiles[w]));
+            }
+            for (int w = 0; w < numWorkers; w++) {
+                int exitCode = workers.get(w).waitFor();
+                if (exitCode != 0) {
+                    throw new IllegalStateException("Worker " + w + " failed with exit code " + exitCode);
+                }
+            }
+
+            // a pair may be found by several workers when its band keys collide by chance
+            for (File pairFile : pairFiles) {
+                mergePairs(pairFile, similarPairsAboveThreshold);
+                pairFile.delete();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the workers", e);
+        } finally {
+            for (Process worker : workers) worker.destroy();
+        }
+        return similarPairsAboveThreshold;
+    }
+
+    /**
+     * Start a worker process on the local host, with the classpath, heap
+     * size and modules of this process.
+     */
+    private Process startWorker(int w, double threshold, File pairFile) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-Xmx") || arg.startsWith("--add-modules")) command.add(arg);
+        }
+        command.add("ShardWorker");
+        command.add(signatureFile.getPath());
+        command.add(Integer.toString(numDocs));
+        command.add(Integer.toString(numHashes));
+        command.add(Integer.toString(numBands));
+        command.add(Integer.toString(seed));
+        command.add(Double.toString(threshold));
+        command.add(Integer.toString(w));
+        command.add(Integer.toString(numWorkers));
+        command.add(pairFile.getPath());
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * Read the (doc, doc, similarity) records of a worker and add them as
+     * pairs of external ids.
+     */
+    private void mergePairs(File pairFile, Set<SimilarPair> similarPairs) throws IOException {
+        long numRecords = pairFile.length() / 16;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pairFile), 1 << 16))) {
+            for (long i = 0; i < numRecords; i++) {
+                int d1 = in.readInt();
+                int d2 = in.readInt();
+                double sim = in.readDouble();
+                addSimilarPair(similarPairs, reader.getExternalId(d1), reader.getExternalId(d2), sim);
+            }
+        }
+    }
+}
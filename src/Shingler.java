@@ -67,4 +67,12 @@ public class Shingler {
         return this.numShingles;
     }
 
+    /**
+     * Describe the configuration of this shingler.
+     * @return the shingle length, number of shingles and seed
+     */
+    public String getDescription() {
+        return "shingleLength=" + k + " numShingles=" + numShingles + " shingleSeed=" + seed;
+    }
+
 }
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+/**
+ * Compares two MinHash signatures by counting the hash values on which they
+ * agree, giving up as soon as the remaining hash values can no longer lift
+ * the count to the required number of matches.
+ * <p>
+ * This is the scalar implementation. When the JDK Vector API is available
+ * (run with --add-modules jdk.incubator.vector), create() returns a
+ * VectorSignatureKernel that compares many hash values per instruction.
+ */
+public class SignatureKernel {
+
+    // number of hash values compared between two early termination checks
+    static final int CHUNK = 8;
+
+    /**
+     * Create the fastest kernel available on this JVM.
+     * @return the vectorized kernel if the Vector API can be loaded, the scalar one otherwise
+     */
+    public static SignatureKernel create() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (SignatureKernel) Class.forName("VectorSignatureKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // not compiled or not supported on this platform, use the scalar kernel
+            }
+        }
+        return new SignatureKernel();
+    }
+
+    /**
+     * Get the least number of matching hash values for which the estimated
+     * similarity exceeds a threshold.
+     * @param threshold the similarity threshold
+     * @param numHashes the number of hash values in a signature
+     * @return the least number of matches m with m / numHashes &gt; threshold
+     */
+    public static int getMinMatches(double threshold, int numHashes) {
+        int minMatches = Math.max(0, (int) Math.floor(threshold * numHashes));
+        // correct for rounding, so the result agrees with comparing the similarity itself
+        while (minMatches > 0 && (double) (minMatches - 1) / numHashes > threshold) minMatches--;
+        while (minMatches <= numHashes && (double) minMatches / numHashes <= threshold) minMatches++;
+        return minMatches;
+    }
+
+    /**
+     * Count the hash values on which two signatures agree.
+     * @param sig1 the first signature
+     * @param sig2 the second signature
+     * @param numHashes the number of leading hash values to compare
+     * @param minMatches the number of matches that is needed
+     * @return the number of matches, or a number below minMatches when the comparison stopped early
+     */
+    public int countMatches(short[] sig1, short[] sig2, int numHashes, int minMatches) {
+        return countMatches(sig1, 0, sig2, 0, numHashes, minMatches);
+    }
+
+    /**
+     * Count the hash values on which two signatures agree, where each
+     * signature starts at an offset in a larger array, such as a segment of
+     * a SignatureMatrix.
+     * @param sig1 the array holding the first signature
+     * @param offset1 the offset of the first signature
+     * @param sig2 the array holding the second signature
+     * @param offset2 the offset of the second signature
+     * @param numHashes the number of leading hash values to compare
+     * @param minMatches the number of matches that is needed
+     * @return the number of matches, or a number below minMatches when the comparison stopped early
+     */
+    public int countMatches(short[] sig1, int offset1, short[] sig2, int offset2, int numHashes, int minMatches) {
+        int matches = 0;
+        int h = 0;
+        while (h < numHashes) {
+            int end = Math.min(h + CHUNK, numHashes);
+            for (; h < end; h++) {
+                if (sig1[offset1 + h] == sig2[offset2 + h]) matches++;
+            }
+            if (matches + numHashes - h < minMatches) return matches;
+        }
+        return matches;
+    }
+
+    /**
+     * Get a description of this kernel.
+     */
+    public String getName() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.Arrays;
+
+/**
+ * MinHash signatures of all documents, stored document by document in flat
+ * short arrays rather than as one array per document. A signature is the
+ * range of numHashes values at getOffset(d) in getSegment(d), which is what
+ * the signature kernel compares. As an array holds at most 2^31 values, the
+ * documents are spread over segments of a power of two documents each, like
+ * the mapped segments of ShardedLSH.
+ */
+public class SignatureMatrix {
+
+    // most hash values in a segment
+    private static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    final int numDocs;
+    final int numHashes;
+    // number of bits of a doc id that index within its segment
+    private final int segmentBits;
+    private final short[][] segments;
+
+    /**
+     * Construct a signature matrix with all values set to Short.MAX_VALUE,
+     * the signature of an empty document.
+     * @param numDocs number of documents
+     * @param numHashes number of hash values per signature
+     */
+    public SignatureMatrix(int numDocs, int numHashes) {
+        this.numDocs = numDocs;
+        this.numHashes = numHashes;
+        this.segmentBits = Integer.numberOfLeadingZeros(Math.max(1, numHashes) - 1) - 2;
+        int docsPerSegment = 1 << segmentBits;
+        this.segments = new short[(int) (((long) numDocs + docsPerSegment - 1) >>> segmentBits)][];
+        for (int s = 0; s < segments.length; s++) {
+            int segmentDocs = Math.min(docsPerSegment, numDocs - s * docsPerSegment);
+            segments[s] = new short[segmentDocs * numHashes];
+            Arrays.fill(segments[s], Short.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Returns the segment holding the signature of a document.
+     */
+    public short[] getSegment(int d) {
+        return segments[d >>> segmentBits];
+    }
+
+    /**
+     * Returns the offset of the signature of a document in its segment.
+     */
+    public int getOffset(int d) {
+        return (d & ((1 << segmentBits) - 1)) * numHashes;
+    }
+
+    /**
+     * Returns the value of a document for a hash function.
+     */
+    public short get(int d, int h) {
+        return getSegment(d)[getOffset(d) + h];
+    }
+
+    /**
+     * Set the value of a document for a hash function.
+     */
+    public void set(int d, int h, short value) {
+        getSegment(d)[getOffset(d) + h] = value;
+    }
+
+    /**
+     * Returns the number of hash values per signature.
+     */
+    public int getNumHashes() {
+        return numHashes;
+    }
+}
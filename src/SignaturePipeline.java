@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Constructs the signature matrix in a pipeline of stages, so reading,
+ * shingling and MinHashing overlap instead of running one after the other.
+ * <p>
+ * The calling thread is the reader stage: it reads the documents in batches,
+ * which keeps the external ids registered in input order, and hands the
+ * batches to a pool of workers through a bounded queue. The workers shingle
+ * the documents of a batch and write their signatures to the rows given
+ * by the batch's first doc id. When the workers fall behind, the queue fills
+ * up and blocks the reader.
+ * <p>
+ * Readers that split into balanced ranges don't need a separate reader
+ * stage: their documents are read, shingled and hashed as a parallel stream.
+ */
+public final class SignaturePipeline {
+
+    // marks the end of the input for the workers
+    private static final Batch END = new Batch(-1, new String[0], 0);
+
+    private SignaturePipeline() {
+
+    }
+
+    /**
+     * A batch of consecutive documents.
+     */
+    private static final class Batch {
+        final int firstDoc;
+        final String[] texts;
+        final int size;
+
+        Batch(int firstDoc, String[] texts, int size) {
+            this.firstDoc = firstDoc;
+            this.texts = texts;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Construct the signature matrix with the given number of threads.
+     * Splittable readers are processed as a parallel stream on a pool of
+     * numThreads, other readers feed a pipeline of numThreads workers.
+     *
+     * @param reader         iterator returning the objects for which the signature matrix should be constructed
+     * @param hashValues     (numValues x numHashes) matrix of hash values
+     * @param runnerUpMatrix (numObjects x numHashes) matrix to fill with the second smallest hash values, or null
+     * @param numThreads     number of threads, 1 to construct the matrix sequentially
+     * @return signatureMatrix      the signature matrix (numObjects x numHashes)
+     */
+    public static SignatureMatrix constructSignatureMatrixShort(Reader reader, short[][] hashValues, SignatureMatrix runnerUpMatrix, int numThreads)
+    {
+        if (numThreads <= 1) {
+            return Minhash.constructSignatureMatrixShort(reader, hashValues, runnerUpMatrix);
+        }
+        if (!reader.isSplittable()) {
+            return constructSignatureMatrixShort(reader, hashValues, runnerUpMatrix, numThreads, 1024, 4 * numThreads);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try (Stream<Document> documents = reader.documents()) {
+            int numDocs = reader.getNumDocs();
+            return pool.submit(() -> Minhash.constructSignatureMatrixShort(documents.parallel(), numDocs, hashValues, runnerUpMatrix)).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Parallel signature construction failed", e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Construct the signature matrix.
+     *
+     * @param reader         iterator returning the objects for which the signature matrix should be constructed
+     * @param hashValues     (numValues x numHashes) matrix of hash values
+     * @param runnerUpMatrix (numObjects x numHashes) matrix to fill with the second smallest hash values, or null
+     * @param numWorkers     number of shingle/signature workers
+     * @param batchSize      number of documents per batch
+     * @param queueCapacity  number of batches that may wait for a worker
+     * @return signatureMatrix      the signature matrix (numObjects x numHashes)
+     */
+    public static SignatureMatrix constructSignatureMatrixShort(Reader reader, short[][] hashValues, SignatureMatrix runnerUpMatrix,
+                                                                int numWorkers, int batchSize, int queueCapacity)
+    {
+        SignatureMatrix signatureMatrix = new SignatureMatrix(reader.getMaxDocs(), hashValues[0].length);
+
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(queueCapacity);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+        Future<?>[] futures = new Future<?>[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            futures[w] = workers.submit(() -> {
+                while (true) {
+                    Batch batch = queue.take();
+                    if (batch == END) return null;
+                    // keep draining after a failure so the reader never blocks on a full queue
+                    if (failure.get() != null) continue;
+                    try {
+                        for (int i = 0; i < batch.size; i++) {
+                            int doc = batch.firstDoc + i;
+                            Minhash.constructSignature(reader.shingler.shingle(batch.texts[i]), hashValues, signatureMatrix, runnerUpMatrix, doc);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+
+        try {
+            int numDocs = 0;
+            while (reader.hasNext() && failure.get() == null) {
+                String[] texts = new String[batchSize];
+                int size = 0;
+                while (size < batchSize && reader.hasNext()) {
+                    texts[size++] = reader.nextText();
+                }
+                queue.put(new Batch(numDocs, texts, size));
+                numDocs += size;
+            }
+            for (int w = 0; w < numWorkers; w++) queue.put(END);
+            // waiting for the workers also makes their writes visible to this thread
+            for (Future<?> future : futures) future.get();
+        } catch (Exception e) {
+            workers.shutdownNow();
+            throw new RuntimeException("Signature pipeline was interrupted", e);
+        } finally {
+            workers.shutdown();
+        }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("Signature worker failed", failure.get());
+        }
+        return signatureMatrix;
+    }
+}
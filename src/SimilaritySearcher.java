@@ -4,6 +4,7 @@
  */
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.lang.model.util.SimpleAnnotationValueVisitor7;
@@ -19,11 +20,40 @@ import java.util.Arrays;
 public abstract class SimilaritySearcher {
 
     Reader reader;
+    // when set, similar pairs are merged into these clusters rather than collected
+    Clusters clusters;
+    // when set, only the most similar pairs are kept
+    TopPairs topPairs;
 
     public SimilaritySearcher(Reader reader) {
         this.reader = reader;
     }
 
+    /**
+     * Merge the similar pairs into clusters while they are found, instead of
+     * returning them.
+     *
+     * @param clusters the clusters to merge the pairs into
+     */
+    public void setClusters(Clusters clusters) {
+        this.clusters = clusters;
+    }
+
+    /**
+     * Add a similar pair to the result, or merge it into the clusters. A pair
+     * of representatives of collapsed duplicates is merged as all the pairs
+     * of the documents they stand for.
+     */
+    protected void addSimilarPair(Set<SimilarPair> pairs, long id1, long id2, double sim) {
+        if (clusters != null) {
+            clusters.union(id1, id2, sim, (long) reader.getGroupSize(id1) * reader.getGroupSize(id2));
+        } else if (topPairs != null) {
+            topPairs.offer(id1, id2, sim);
+        } else {
+            pairs.add(new SimilarPair(id1, id2, sim));
+        }
+    }
+
     /**
      * Returns the pairs of the objectMapping that have a similarity coefficient exceeding threshold
      *
@@ -32,6 +62,33 @@ public abstract class SimilaritySearcher {
      */
     abstract public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold);
 
+    /**
+     * Returns the most similar pairs with a similarity coefficient exceeding
+     * threshold. Only numPairs pairs are kept while searching, and the
+     * similarity a pair has to exceed rises as better pairs are found.
+     *
+     * @param numPairs  the maximal number of pairs
+     * @param threshold the similarity threshold
+     * @return the pairs, most similar first
+     */
+    public List<SimilarPair> getMostSimilarPairs(int numPairs, double threshold) {
+        topPairs = new TopPairs(numPairs, threshold);
+        try {
+            getSimilarPairsAboveThreshold(threshold);
+            return topPairs.toList();
+        } finally {
+            topPairs = null;
+        }
+    }
+
+    /**
+     * Returns the similarity a pair has to exceed to be kept: the threshold,
+     * or a higher similarity once the most similar pairs are known to exceed it.
+     */
+    protected double getMinSimilarity(double threshold) {
+        return topPairs != null ? topPairs.getMinSimilarity() : threshold;
+    }
+
     /**
      * Jaccard similarity between two sets.
      *
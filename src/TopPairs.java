@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The most similar pairs among the pairs offered to it, up to a capacity.
+ * The pairs are kept in a min-heap over primitive arrays, so memory stays at
+ * O(capacity) however many pairs are offered. Once the heap is full, a pair
+ * has to beat the least similar pair in it, which lets searchers skip weaker
+ * candidates early. A pair that is offered again, as happens when it
+ * collides in several bands, is only kept once, which is checked in an
+ * open addressing table of the pairs in the heap. Not thread-safe: threads
+ * keep their own top pairs and merge them afterwards.
+ */
+public class TopPairs {
+
+    private final int capacity;
+    private final double threshold;
+    // heap of pairs, least similar first
+    private final long[] ids1;
+    private final long[] ids2;
+    private final double[] sims;
+    private int size;
+    // open addressing table of the pairs in the heap, as (smallest id, largest id)
+    private final long[] slotIds1;
+    private final long[] slotIds2;
+    private final boolean[] slotUsed;
+    private final int slotBits;
+
+    /**
+     * Construct empty top pairs.
+     * @param capacity maximal number of pairs to keep
+     * @param threshold the similarity pairs have to exceed
+     */
+    public TopPairs(int capacity, double threshold) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Can't keep the top " + capacity + " pairs");
+        }
+        this.capacity = capacity;
+        this.threshold = threshold;
+        this.ids1 = new long[capacity];
+        this.ids2 = new long[capacity];
+        this.sims = new double[capacity];
+        // keep the table at most half full, counting the pair added before one is evicted
+        this.slotBits = 64 - Long.numberOfLeadingZeros(2L * capacity + 1);
+        this.slotIds1 = new long[1 << slotBits];
+        this.slotIds2 = new long[1 << slotBits];
+        this.slotUsed = new boolean[1 << slotBits];
+    }
+
+    /**
+     * Returns the similarity a pair has to exceed to be kept: the threshold,
+     * or the similarity of the least similar pair once the heap is full.
+     */
+    public double getMinSimilarity() {
+        return size < capacity ? threshold : Math.max(threshold, sims[0]);
+    }
+
+    /**
+     * Offer a pair, which is kept if it is among the most similar ones.
+     * @param id1 id of object 1
+     * @param id2 id of object 2
+     * @param sim their similarity
+     * @return whether the pair was kept
+     */
+    public boolean offer(long id1, long id2, double sim) {
+        if (sim <= getMinSimilarity()) {
+            return false;
+        }
+        if (!addMember(id1, id2)) {
+            return false;
+        }
+        if (size < capacity) {
+            set(size, id1, id2, sim);
+            siftUp(size++);
+        } else {
+            removeMember(ids1[0], ids2[0]);
+            set(0, id1, id2, sim);
+            siftDown(0);
+        }
+        return true;
+    }
+
+    /**
+     * Offer all pairs of other top pairs.
+     */
+    public void addAll(TopPairs other) {
+        for (int i = 0; i < other.size; i++) offer(other.ids1[i], other.ids2[i], other.sims[i]);
+    }
+
+    /**
+     * Returns the number of pairs kept.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the pairs, most similar first.
+     */
+    public List<SimilarPair> toList() {
+        List<SimilarPair> pairs = new ArrayList<SimilarPair>(size);
+        for (int i = 0; i < size; i++) pairs.add(new SimilarPair(ids1[i], ids2[i], sims[i]));
+        Collections.sort(pairs, Collections.reverseOrder());
+        return pairs;
+    }
+
+    /**
+     * Add a pair to the table of pairs in the heap.
+     * @return false if the pair, in either order, is already in the heap
+     */
+    private boolean addMember(long id1, long id2) {
+        long low = Math.min(id1, id2);
+        long high = Math.max(id1, id2);
+        int mask = slotUsed.length - 1;
+        int slot = getSlot(low, high);
+        while (slotUsed[slot]) {
+            if (slotIds1[slot] == low && slotIds2[slot] == high) return false;
+            slot = (slot + 1) & mask;
+        }
+        slotUsed[slot] = true;
+        slotIds1[slot] = low;
+        slotIds2[slot] = high;
+        return true;
+    }
+
+    /**
+     * Remove a pair from the table of pairs in the heap, shifting back the
+     * pairs after it so no probe sequence is broken.
+     */
+    private void removeMember(long id1, long id2) {
+        long low = Math.min(id1, id2);
+        long high = Math.max(id1, id2);
+        int mask = slotUsed.length - 1;
+        int slot = getSlot(low, high);
+        while (slotIds1[slot] != low || slotIds2[slot] != high) slot = (slot + 1) & mask;
+
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (!slotUsed[next]) break;
+            int home = getSlot(slotIds1[next], slotIds2[next]);
+            // move the pair back unless its home lies cyclically in (slot, next]
+            boolean inRange = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+            if (!inRange) {
+                slotIds1[slot] = slotIds1[next];
+                slotIds2[slot] = slotIds2[next];
+                slot = next;
+            }
+        }
+        slotUsed[slot] = false;
+    }
+
+    /**
+     * Get the home slot of a pair with Fibonacci hashing.
+     */
+    private int getSlot(long low, long high) {
+        return (int) (((low * 31 + high) * 0x9E3779B97F4A7C15L) >>> (64 - slotBits));
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (sims[parent] <= sims[i]) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) break;
+            if (child + 1 < size && sims[child + 1] < sims[child]) child++;
+            if (sims[i] <= sims[child]) break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void set(int i, long id1, long id2, double sim) {
+        ids1[i] = id1;
+        ids2[i] = id2;
+        sims[i] = sim;
+    }
+
+    private void swap(int i, int j) {
+        long id1 = ids1[i];
+        long id2 = ids2[i];
+        double sim = sims[i];
+        set(i, ids1[j], ids2[j], sims[j]);
+        set(j, id1, id2, sim);
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the tweets in a series of byte ranges of a file. The file
+ * is cut into ranges of RANGE_SIZE bytes, and a tweet belongs to the range
+ * its line starts in: a range resyncs to the first newline before its start
+ * and reads its last tweet past its end. Given the internal id of the first
+ * tweet of every range, the ranges can be split into two balanced halves of
+ * the file, and every half can be read, parsed and shingled independently:
+ * tweets are read in chunks with positional reads, which don't move any
+ * shared file position.
+ */
+public class TweetSpliterator implements Spliterator<Document> {
+
+    // number of bytes per range
+    static final int RANGE_SIZE = 1 << 20;
+    // number of bytes to read at once
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final int[] firstDocs;
+    private final Shingler shingler;
+    private final LongColumn idToDoc;
+    private final Charset charset = Charset.defaultCharset();
+    // next range to read, and the range after the last one
+    private int range;
+    private final int endRange;
+    // internal id of the next tweet, and of the first tweet after the range being read
+    private int current;
+    private int rangeEnd;
+    // byte offset of the next tweet
+    private long position;
+    // chunkLength bytes of the file from chunkStart on
+    private byte[] chunk = new byte[0];
+    private int chunkLength;
+    private long chunkStart;
+
+    /**
+     * Construct a spliterator over a series of ranges.
+     * @param channel the file to read from
+     * @param firstDocs internal id of the first tweet of every range, followed by the number of tweets
+     * @param shingler a document shingler
+     * @param idToDoc the column to register the external id of every tweet in, sized for all tweets
+     * @param start the first range
+     * @param end the range after the last one
+     */
+    public TweetSpliterator(FileChannel channel, int[] firstDocs, Shingler shingler, LongColumn idToDoc, int start, int end) {
+        this.channel = channel;
+        this.firstDocs = firstDocs;
+        this.shingler = shingler;
+        this.idToDoc = idToDoc;
+        this.range = start;
+        this.endRange = end;
+        this.current = firstDocs[start];
+        this.rangeEnd = firstDocs[start];
+    }
+
+    /**
+     * Count the tweets that belong to a range of a file, i.e. the lines that
+     * start in it. A line starts at the beginning of the file and after
+     * every newline, except one that ends the file.
+     * @param channel the file to read from
+     * @param range the range
+     * @return the number of tweets
+     */
+    public static int countTweets(FileChannel channel, int range) {
+        try {
+            long start = (long) range * RANGE_SIZE;
+            long end = Math.min(start + RANGE_SIZE, channel.size());
+            if (start >= end) return 0;
+
+            int count = start == 0 ? 1 : 0;
+            // newlines at offsets start - 1 up to end - 1 start the lines of this range
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            long offset = Math.max(0, start - 1);
+            while (offset < end - 1) {
+                buffer.clear();
+                buffer.limit((int) Math.min(CHUNK_SIZE, end - 1 - offset));
+                int read = channel.read(buffer, offset);
+                if (read <= 0) break;
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') count++;
+                }
+                offset += read;
+            }
+            return count;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Document> action) {
+        while (current >= rangeEnd) {
+            if (range >= endRange) {
+                return false;
+            }
+            current = firstDocs[range];
+            rangeEnd = firstDocs[range + 1];
+            position = range == 0 ? 0 : findLineEnd((long) range * RANGE_SIZE - 1);
+            range++;
+        }
+        long lineEnd = findLineEnd(position);
+
+        int from = (int) (position - chunkStart);
+        int length = (int) (lineEnd - position);
+        if (length > 0 && chunk[from + length - 1] == '\n') length--;
+        String[] cols = new String(chunk, from, length, charset).split("\t", -1);
+
+        long tweetId = Long.parseLong(cols[1]);
+        idToDoc.set(current, tweetId);
+        action.accept(new Document(current, tweetId, shingler.shingle(cols[2])));
+        current++;
+        position = lineEnd;
+        return true;
+    }
+
+    /**
+     * Find the end of the line at an offset, making sure the chunk holds
+     * the whole line.
+     * @return the offset after the first newline from the given offset on, or the end of the file
+     */
+    private long findLineEnd(long offset) {
+        if (offset < chunkStart || offset >= chunkStart + chunkLength) {
+            readChunk(offset, CHUNK_SIZE);
+        }
+        int i = (int) (offset - chunkStart);
+        while (true) {
+            for (; i < chunkLength; i++) {
+                if (chunk[i] == '\n') return chunkStart + i + 1;
+            }
+            if (chunkLength < chunk.length) {
+                return chunkStart + chunkLength;
+            }
+            // the line runs past the chunk, read it again in a larger one
+            i = (int) (chunkStart + chunkLength - offset);
+            readChunk(offset, 2 * chunk.length);
+        }
+    }
+
+    /**
+     * Read a chunk of the file, which is shorter than its size at the end of the file.
+     */
+    private void readChunk(long start, int size) {
+        if (chunk.length != size) chunk = new byte[size];
+        chunkStart = start;
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) break;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        chunkLength = buffer.position();
+    }
+
+    @Override
+    public Spliterator<Document> trySplit() {
+        // only ranges that weren't started can be split off
+        if (current < rangeEnd || endRange - range < 2) {
+            return null;
+        }
+        // ranges are of equal size, so the middle range splits the bytes in half
+        int middle = (range + endRange) >>> 1;
+        TweetSpliterator prefix = new TweetSpliterator(channel, firstDocs, shingler, idToDoc, range, middle);
+        range = middle;
+        current = firstDocs[middle];
+        rangeEnd = firstDocs[middle];
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return firstDocs[endRange] - current;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
@@ -2,32 +2,93 @@
  * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
  * copy or distribute without permission. Written by Pieter Robberechts, 2023
  */
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.File;
-import java.util.ArrayList;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Scanner;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Reads tweets from a file and constructs shingle representations for
- * these tweets.
+ * these tweets. The file may be gzipped; block gzip (BGZF) files are
+ * decompressed in parallel.
  */
 public class TwitterReader extends Reader {
 
     private String filePath;
     private BufferedReader br;
     private Scanner scanner;
+    // number of lines read, which exceeds curDoc when duplicates are collapsed
+    private int numLines;
+    // next tweet with a new text, read ahead when duplicates are collapsed
+    private String pendingTweet;
+    private long pendingId;
+    // whether the file is gzipped, in which case it can't be split on byte offsets
+    private boolean compressed;
+    // number of threads decompressing a block gzip file
+    private int numThreads;
 
     public TwitterReader(int maxDocs, Shingler shingler, String filePath) {
+        this(maxDocs, shingler, filePath, false);
+    }
+
+    public TwitterReader(int maxDocs, Shingler shingler, String filePath, boolean collapseDuplicates) {
+        this(maxDocs, shingler, filePath, collapseDuplicates, 1);
+    }
+
+    /**
+     * Construct a reader for a file of tweets.
+     * @param maxDocs maximal number of tweets to read.
+     * @param shingler a document shingler.
+     * @param filePath the file to read from.
+     * @param collapseDuplicates whether to collapse tweets with identical texts into one document.
+     * @param numThreads number of threads decompressing a block gzip file.
+     */
+    public TwitterReader(int maxDocs, Shingler shingler, String filePath, boolean collapseDuplicates, int numThreads) {
         super(maxDocs, shingler);
 
         this.filePath = filePath;
+        this.collapseDuplicates = collapseDuplicates;
+        this.numThreads = numThreads;
+        try {
+            this.compressed = BlockGzipInputStream.isGzip(new File(filePath));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
         reset();
     }
 
     @Override
-    public Set<Integer> next() {
+    public boolean hasNext() {
+        return collapseDuplicates ? pendingTweet != null : super.hasNext();
+    }
+
+    @Override
+    public String nextText() {
+        if (collapseDuplicates) {
+            if (pendingTweet == null) {
+                return null;
+            }
+            String tweet = pendingTweet;
+            this.curDoc++;
+            this.idToDoc.add(pendingId);
+            readAhead();
+            return tweet;
+        }
+
         this.curDoc++;
 
         if (this.curDoc >= this.maxDocs) {
@@ -44,20 +105,152 @@ public class TwitterReader extends Reader {
         long tweetId = Long.parseLong(cols[1]);
         this.idToDoc.add(tweetId);
 
-        String tweet = cols[2];
-        Set<Integer> shingle = this.shingler.shingle(tweet);
+        return cols[2];
+    }
+
+    /**
+     * Read ahead to the next tweet whose text wasn't seen before, and add the
+     * ids of the tweets skipped on the way to their representatives.
+     */
+    private void readAhead() {
+        this.pendingTweet = null;
+        while (numLines < maxDocs && scanner.hasNext()) {
+            if (numLines % 100000 == 0) {
+                System.out.println("at doc " + numLines);
+            }
+            numLines++;
+
+            String line = scanner.next();
+            String[] cols = line.split("\t", -1);
+            long tweetId = Long.parseLong(cols[1]);
+            String tweet = cols[2];
+
+            int representative = findRepresentative(tweet, this.curDoc + 1);
+            if (representative == -1) {
+                this.pendingTweet = tweet;
+                this.pendingId = tweetId;
+                return;
+            }
+            addDuplicate(representative, tweetId);
+        }
+    }
+
+    /**
+     * Get a stream over all tweets that splits into balanced byte ranges of
+     * the file. The internal id of a tweet is its line number, which depends
+     * on every line before it, so the tweets of each range are counted up
+     * front, in parallel. The ranges are then read, parsed and shingled in
+     * parallel as well, registering the external ids in idToDoc without
+     * touching any other state of this reader. When duplicates are collapsed
+     * or the file is gzipped, the tweets are read one after the other instead.
+     */
+    @Override
+    public Stream<Document> documents() {
+        if (!isSplittable()) {
+            return super.documents();
+        }
+        reset();
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+            int[] firstDocs;
+            try {
+                firstDocs = countTweets(channel);
+            } catch (RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            int numDocs = firstDocs[firstDocs.length - 1];
+            this.idToDoc = new LongColumn(numDocs);
+            this.curDoc = numDocs - 1;
+            return StreamSupport.stream(new TweetSpliterator(channel, firstDocs, shingler, idToDoc, 0, firstDocs.length - 1), false)
+                    .onClose(() -> {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        return shingle;
+    /**
+     * Count the tweets in the byte ranges of the file, in waves of a few
+     * ranges per thread, until the ranges hold maxDocs tweets.
+     * @return the internal id of the first tweet of every range, followed by the number of tweets
+     */
+    private int[] countTweets(FileChannel channel) throws IOException {
+        int numRanges = (int) ((channel.size() + TweetSpliterator.RANGE_SIZE - 1) / TweetSpliterator.RANGE_SIZE);
+        int waveSize = 4 * Math.max(1, numThreads);
+        int[] firstDocs = new int[numRanges + 1];
+        int numDocs = 0;
+        int range = 0;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, numThreads));
+        try {
+            while (range < numRanges && numDocs < maxDocs) {
+                int from = range;
+                int to = Math.min(numRanges, range + waveSize);
+                int[] counts = pool.submit(() -> IntStream.range(from, to).parallel()
+                        .map(r -> TweetSpliterator.countTweets(channel, r)).toArray()).get();
+                for (int i = 0; i < counts.length && numDocs < maxDocs; i++) {
+                    firstDocs[range++] = numDocs;
+                    numDocs = (int) Math.min(maxDocs, (long) numDocs + counts[i]);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Counting the tweets failed", e);
+        } finally {
+            pool.shutdown();
+        }
+        firstDocs[range] = numDocs;
+        System.out.println("indexed " + numDocs + " docs in " + range + " ranges");
+        return Arrays.copyOf(firstDocs, range + 1);
+    }
+
+    @Override
+    public boolean isSplittable() {
+        return !collapseDuplicates && !compressed;
+    }
+
+    /**
+     * Describe the input, including the size and modification time of the
+     * file, so a file that was replaced is not mistaken for the original.
+     */
+    @Override
+    public String getDescription() {
+        File file = new File(filePath);
+        return super.getDescription() + " dataFile=" + file.getAbsolutePath() + " size=" + file.length() + " lastModified=" + file.lastModified();
+    }
+
+    /**
+     * Open the file, decompressing it if it is gzipped.
+     */
+    private InputStream open() throws IOException {
+        File file = new File(filePath);
+        if (!compressed) {
+            return new FileInputStream(file);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        if (BlockGzipInputStream.isBlockGzip(file)) {
+            return new BlockGzipInputStream(in, numThreads);
+        }
+        // the end of a plain gzip member is only found by inflating it, so it can't be split up
+        return new GZIPInputStream(in, 1 << 16);
     }
 
     @Override
     public void reset() {
         try {
-            this.scanner = new Scanner(new File(filePath));
+            if (this.scanner != null) this.scanner.close();
+            this.scanner = new Scanner(open());
             scanner.useDelimiter("\n");
             System.gc();
             this.curDoc = -1;
-            this.idToDoc = new ArrayList<Long>();
+            this.idToDoc = new LongColumn();
+            this.numLines = 0;
+            resetDuplicates();
+            if (collapseDuplicates) readAhead();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Signature kernel that uses the JDK Vector API to compare as many hash
+ * values per instruction as the hardware supports. Needs to be compiled and
+ * run with --add-modules jdk.incubator.vector; otherwise
+ * SignatureKernel.create() falls back to the scalar kernel.
+ */
+public class VectorSignatureKernel extends SignatureKernel {
+
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+
+    @Override
+    public int countMatches(short[] sig1, int offset1, short[] sig2, int offset2, int numHashes, int minMatches) {
+        int matches = 0;
+        int h = 0;
+        int upperBound = SPECIES.loopBound(numHashes);
+        for (; h < upperBound; h += SPECIES.length()) {
+            ShortVector v1 = ShortVector.fromArray(SPECIES, sig1, offset1 + h);
+            ShortVector v2 = ShortVector.fromArray(SPECIES, sig2, offset2 + h);
+            matches += v1.eq(v2).trueCount();
+            if (matches + numHashes - h - SPECIES.length() < minMatches) return matches;
+        }
+        for (; h < numHashes; h++) {
+            if (sig1[offset1 + h] == sig2[offset2 + h]) matches++;
+        }
+        return matches;
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+}
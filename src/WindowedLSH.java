@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) DTAI - KU Leuven – All rights reserved. Proprietary, do not
+ * copy or distribute without permission. Written by Pieter Robberechts, 2023
+ */
+
+import java.util.*;
+
+/**
+ * Implementation of minhash and locality sensitive hashing (LSH) over a
+ * sliding window of a stream of documents.
+ * <p>
+ * Documents are read, hashed and bucketed one at a time, in all bands at
+ * once. Only documents within a window behind the newest document are kept:
+ * the window is either a range of external ids, or, for tweets, a time span
+ * derived from their snowflake ids. When the stream moves on, the oldest
+ * documents are evicted from the window and from their buckets. Memory thus
+ * scales with the size of the window rather than with the size of the
+ * corpus, and pairs that lie further apart than the window are never
+ * verified. Documents are expected to arrive roughly in id order.
+ */
+public class WindowedLSH extends SimilaritySearcher
+{
+
+    // first millisecond of the twitter snowflake epoch
+    static final long TWITTER_EPOCH = 1288834974657L;
+
+    int numHashes;
+    int numBands;
+    int numBuckets;
+    int numShingles;
+    int seed;
+    long window;
+    boolean timeWindow;
+    short[][] hashValues;
+    SignatureKernel kernel = SignatureKernel.create();
+    // largest number of documents that were in the window at once
+    int maxWindowSize;
+
+    /**
+     * A document in the window.
+     */
+    private static final class WindowDoc {
+        final long externalId;
+        final long position;
+        final short[] signature;
+        final int[] buckets;
+
+        WindowDoc(long externalId, long position, short[] signature, int[] buckets) {
+            this.externalId = externalId;
+            this.position = position;
+            this.signature = signature;
+            this.buckets = buckets;
+        }
+    }
+
+    /**
+     * Construct a windowed LSH similarity searcher.
+     *
+     * @param reader     the document reader
+     * @param numHashes  number of hashes to use to construct the signatures
+     * @param numBands   number of bands to use during locality sensitive hashing
+     * @param numBuckets number of buckets to use during locality sensitive hashing
+     * @param window     size of the window, in ids or in milliseconds
+     * @param timeWindow whether the window is a time span of snowflake ids rather than a range of ids
+     * @param hashFamily family of the MinHash functions, "table" or "murmur"
+     * @param seed       should be used to generate any random numbers needed
+     */
+    public WindowedLSH(Reader reader, int numHashes, int numBands, int numBuckets, long window, boolean timeWindow, String hashFamily, int seed) {
+        super(reader);
+
+        this.numHashes = numHashes;
+        this.numBands = numBands;
+        this.numBuckets = numBuckets;
+        this.numShingles = reader.getNumShingles();
+        this.window = window;
+        this.timeWindow = timeWindow;
+        this.seed = seed;
+        this.hashValues = Minhash.constructHashTableShort(hashFamily, numHashes, numShingles, seed);
+    }
+
+    /**
+     * Returns the pairs within the window with similarity above threshold
+     * (approximate).
+     */
+    @Override
+    public Set<SimilarPair> getSimilarPairsAboveThreshold(double threshold) {
+        Set<SimilarPair> similarPairsAboveThreshold = new HashSet<SimilarPair>();
+        int rows = numHashes / numBands;
+        int minMatches = SignatureKernel.getMinMatches(threshold, numHashes);
+        byte[] docKey = new byte[rows];
+
+        // buckets of all bands, only created once a document hashes to them
+        List<List<ArrayDeque<WindowDoc>>> bandToBuckets = new ArrayList<List<ArrayDeque<WindowDoc>>>(numBands);
+        for (int b = 0; b < numBands; b++) bandToBuckets.add(new ArrayList<ArrayDeque<WindowDoc>>(Collections.nCopies(numBuckets, (ArrayDeque<WindowDoc>) null)));
+        ArrayDeque<WindowDoc> windowDocs = new ArrayDeque<WindowDoc>();
+        maxWindowSize = 0;
+
+        reader.reset();
+        while (reader.hasNext()) {
+            Set<Integer> shingles = reader.next();
+            long externalId = reader.getExternalId(reader.getNumDocs() - 1);
+            long position = getPosition(externalId);
+
+            // Evict the documents that fell out of the window
+            while (!windowDocs.isEmpty() && windowDocs.peekFirst().position < position - window) {
+                WindowDoc evicted = windowDocs.pollFirst();
+                for (int b = 0; b < numBands; b++) {
+                    ArrayDeque<WindowDoc> bucket = bandToBuckets.get(b).get(evicted.buckets[b]);
+                    // buckets are filled in stream order, so the evicted document is normally first
+                    if (bucket.peekFirst() == evicted) bucket.pollFirst(); else bucket.remove(evicted);
+                    if (bucket.isEmpty()) bandToBuckets.get(b).set(evicted.buckets[b], null);
+                }
+            }
+
+            short[] signature = new short[numHashes];
+            Minhash.constructSignature(shingles, hashValues, signature);
+            int[] buckets = new int[numBands];
+            for (int b = 0; b < numBands; b++) {
+                for (int row = 0; row < rows; row++) docKey[row] = (byte) signature[rows*b + row];
+                buckets[b] = Math.abs(MurmurHash.hash32(docKey, rows, seed)) % numBuckets;
+            }
+            WindowDoc doc = new WindowDoc(externalId, position, signature, buckets);
+
+            for (int b = 0; b < numBands; b++) {
+                ArrayDeque<WindowDoc> bucket = bandToBuckets.get(b).get(buckets[b]);
+                if (bucket == null) {
+                    bucket = new ArrayDeque<WindowDoc>();
+                    bandToBuckets.get(b).set(buckets[b], bucket);
+                }
+                for (WindowDoc other : bucket) {
+                    // out of order documents may still be in the window while too far apart
+                    if (Math.abs(other.position - position) > window) continue;
+                    // pairs that collided in an earlier band were verified there
+                    if (collidesBefore(other, doc, b)) continue;
+
+                    double sim = (double) kernel.countMatches(other.signature, signature, numHashes, minMatches) / numHashes;
+                    if (sim > getMinSimilarity(threshold)) {
+                        addSimilarPair(similarPairsAboveThreshold, other.externalId, externalId, sim);
+                        minMatches = SignatureKernel.getMinMatches(getMinSimilarity(threshold), numHashes);
+                    }
+                }
+                bucket.addLast(doc);
+            }
+            windowDocs.addLast(doc);
+            maxWindowSize = Math.max(maxWindowSize, windowDocs.size());
+        }
+        System.out.println("At most " + maxWindowSize + " documents were in the window at once");
+        return similarPairsAboveThreshold;
+    }
+
+    /**
+     * Get the position of a document in the stream, being its id or, for a
+     * time window, the creation time in milliseconds encoded in its snowflake
+     * id.
+     */
+    private long getPosition(long externalId) {
+        return timeWindow ? (externalId >> 22) + TWITTER_EPOCH : externalId;
+    }
+
+    /**
+     * Check whether two documents share a bucket in a band before b.
+     */
+    private boolean collidesBefore(WindowDoc doc1, WindowDoc doc2, int b) {
+        for (int prev = 0; prev < b; prev++) {
+            if (doc1.buckets[prev] == doc2.buckets[prev]) return true;
+        }
+        return false;
+    }
+}